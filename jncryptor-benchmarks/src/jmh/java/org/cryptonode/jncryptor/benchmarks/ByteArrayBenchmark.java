@@ -0,0 +1,106 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.cryptonode.jncryptor.AES256JNCryptor;
+import org.cryptonode.jncryptor.CryptorException;
+import org.cryptonode.jncryptor.PasswordKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks the {@code byte[]} methods of {@link AES256JNCryptor} with each
+ * kind of key material. The password variants include key derivation, so
+ * they are dominated by PBKDF2 for all but the largest payloads.
+ * <p>
+ * The state is shared between threads; run with {@code -PjmhThreads=n} to
+ * measure contention.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ByteArrayBenchmark {
+
+  static final char[] PASSWORD = "benchmark password".toCharArray();
+
+  @Param({ "16", "1024", "65536", "1048576", "16777216", "67108864" })
+  int payloadSize;
+
+  AES256JNCryptor cryptor;
+  byte[] plaintext;
+
+  PasswordKey encryptionPasswordKey;
+  PasswordKey hmacPasswordKey;
+  SecretKey encryptionKey;
+  SecretKey hmacKey;
+
+  byte[] passwordCiphertext;
+  byte[] keyCiphertext;
+
+  @Setup
+  public void setUp() throws CryptorException {
+    cryptor = new AES256JNCryptor();
+
+    Random random = new Random(42);
+    plaintext = new byte[payloadSize];
+    random.nextBytes(plaintext);
+    byte[] encryptionSalt = new byte[8];
+    random.nextBytes(encryptionSalt);
+    byte[] hmacSalt = new byte[8];
+    random.nextBytes(hmacSalt);
+
+    encryptionPasswordKey = cryptor.getPasswordKey(PASSWORD);
+    hmacPasswordKey = cryptor.getPasswordKey(PASSWORD);
+    encryptionKey = cryptor.keyForPassword(PASSWORD, encryptionSalt);
+    hmacKey = cryptor.keyForPassword(PASSWORD, hmacSalt);
+
+    passwordCiphertext = cryptor.encryptData(plaintext, PASSWORD);
+    keyCiphertext = cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+  }
+
+  @Benchmark
+  public byte[] encryptWithPassword() throws CryptorException {
+    return cryptor.encryptData(plaintext, PASSWORD);
+  }
+
+  @Benchmark
+  public byte[] decryptWithPassword() throws CryptorException {
+    return cryptor.decryptData(passwordCiphertext, PASSWORD);
+  }
+
+  @Benchmark
+  public byte[] encryptWithPasswordKey() throws CryptorException {
+    return cryptor.encryptData(plaintext, encryptionPasswordKey,
+        hmacPasswordKey);
+  }
+
+  @Benchmark
+  public byte[] encryptWithSecretKey() throws CryptorException {
+    return cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+  }
+
+  @Benchmark
+  public byte[] decryptWithSecretKey() throws CryptorException {
+    return cryptor.decryptData(keyCiphertext, encryptionKey, hmacKey);
+  }
+}
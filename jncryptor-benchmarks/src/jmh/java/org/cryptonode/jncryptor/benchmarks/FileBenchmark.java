@@ -0,0 +1,140 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.cryptonode.jncryptor.AES256JNCryptor;
+import org.cryptonode.jncryptor.AES256JNCryptorFiles;
+import org.cryptonode.jncryptor.AES256JNCryptorInputStream;
+import org.cryptonode.jncryptor.AES256JNCryptorOutputStream;
+import org.cryptonode.jncryptor.CryptorException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Compares the memory-mapped {@link AES256JNCryptorFiles} methods with
+ * piping a file through the stream classes, using key-based encryption so
+ * that key derivation does not dominate. The files are written to the default
+ * temporary directory, which needs room for three copies of the largest size.
+ * <p>
+ * The default sizes keep a run short. Use, for example,
+ * {@code -PjmhInclude=FileBenchmark -PjmhFileSizes=4294967296} to measure
+ * multi-gigabyte files.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FileBenchmark {
+
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  @Param({ "67108864", "1073741824" })
+  long fileSize;
+
+  SecretKey encryptionKey;
+  SecretKey hmacKey;
+
+  Path plaintextFile;
+  Path ciphertextFile;
+  Path outputFile;
+
+  @Setup
+  public void setUp() throws IOException, CryptorException {
+    Random random = new Random(42);
+    byte[] encryptionSalt = new byte[8];
+    random.nextBytes(encryptionSalt);
+    byte[] hmacSalt = new byte[8];
+    random.nextBytes(hmacSalt);
+
+    AES256JNCryptor cryptor = new AES256JNCryptor();
+    encryptionKey = cryptor.keyForPassword(ByteArrayBenchmark.PASSWORD,
+        encryptionSalt);
+    hmacKey = cryptor.keyForPassword(ByteArrayBenchmark.PASSWORD, hmacSalt);
+
+    plaintextFile = Files.createTempFile("jncryptor-plaintext", ".bin");
+    ciphertextFile = Files.createTempFile("jncryptor-ciphertext", ".bin");
+    outputFile = Files.createTempFile("jncryptor-output", ".bin");
+
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    try (OutputStream out = Files.newOutputStream(plaintextFile)) {
+      for (long written = 0; written < fileSize; written += buffer.length) {
+        random.nextBytes(buffer);
+        out.write(buffer, 0, (int) Math.min(buffer.length, fileSize - written));
+      }
+    }
+
+    AES256JNCryptorFiles.encryptFile(plaintextFile, ciphertextFile,
+        encryptionKey, hmacKey);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(plaintextFile);
+    Files.deleteIfExists(ciphertextFile);
+    Files.deleteIfExists(outputFile);
+  }
+
+  @Benchmark
+  public void encryptMapped() throws IOException, CryptorException {
+    AES256JNCryptorFiles.encryptFile(plaintextFile, outputFile, encryptionKey,
+        hmacKey);
+  }
+
+  @Benchmark
+  public void decryptMapped() throws IOException, CryptorException {
+    AES256JNCryptorFiles.decryptFile(ciphertextFile, outputFile,
+        encryptionKey, hmacKey);
+  }
+
+  @Benchmark
+  public void encryptStream() throws IOException, CryptorException {
+    try (InputStream in = Files.newInputStream(plaintextFile);
+        OutputStream out = new AES256JNCryptorOutputStream(
+            Files.newOutputStream(outputFile), encryptionKey, hmacKey)) {
+      copy(in, out);
+    }
+  }
+
+  @Benchmark
+  public void decryptStream() throws IOException {
+    try (InputStream in = new AES256JNCryptorInputStream(
+        Files.newInputStream(ciphertextFile), encryptionKey, hmacKey);
+        OutputStream out = Files.newOutputStream(outputFile)) {
+      copy(in, out);
+    }
+  }
+
+  private static void copy(InputStream in, OutputStream out)
+      throws IOException {
+    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+  }
+}
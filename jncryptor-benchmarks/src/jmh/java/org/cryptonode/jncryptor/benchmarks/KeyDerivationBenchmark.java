@@ -0,0 +1,89 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.cryptonode.jncryptor.AES256JNCryptor;
+import org.cryptonode.jncryptor.CryptorException;
+import org.cryptonode.jncryptor.DerivedKeyCache;
+import org.cryptonode.jncryptor.KeyDerivationEngine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks PBKDF2 key derivation with each {@link KeyDerivationEngine}, with
+ * and without a key derivation executor, and the cost of a
+ * {@link DerivedKeyCache} hit for comparison.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyDerivationBenchmark {
+
+  @Param({ "JCE", "PURE_JAVA" })
+  KeyDerivationEngine engine;
+
+  @Param({ "false", "true" })
+  boolean parallel;
+
+  AES256JNCryptor cryptor;
+  AES256JNCryptor cachingCryptor;
+  ExecutorService executor;
+  byte[] salt;
+
+  @Setup
+  public void setUp() throws CryptorException {
+    salt = new byte[8];
+    new Random(42).nextBytes(salt);
+
+    cryptor = new AES256JNCryptor();
+    cryptor.setKeyDerivationEngine(engine);
+    if (parallel) {
+      executor = Executors.newFixedThreadPool(2);
+      cryptor.setKeyDerivationExecutor(executor);
+    }
+
+    cachingCryptor = new AES256JNCryptor();
+    cachingCryptor.setKeyCache(new DerivedKeyCache(16));
+    cachingCryptor.keyForPassword(ByteArrayBenchmark.PASSWORD, salt);
+  }
+
+  @TearDown
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Benchmark
+  public SecretKey keyForPassword() throws CryptorException {
+    return cryptor.keyForPassword(ByteArrayBenchmark.PASSWORD, salt);
+  }
+
+  @Benchmark
+  public SecretKey keyForPasswordCached() throws CryptorException {
+    return cachingCryptor.keyForPassword(ByteArrayBenchmark.PASSWORD, salt);
+  }
+}
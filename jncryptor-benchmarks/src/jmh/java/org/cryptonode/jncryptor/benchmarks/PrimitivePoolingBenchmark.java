@@ -0,0 +1,99 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.cryptonode.jncryptor.AES256JNCryptor;
+import org.cryptonode.jncryptor.CryptorException;
+import org.cryptonode.jncryptor.CryptorSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures the per-message overhead of creating JCE primitives on small
+ * payloads, by running the key-based methods with primitive pooling enabled
+ * and disabled, and with a {@link CryptorSession}.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrimitivePoolingBenchmark {
+
+  @Param({ "16", "1024" })
+  int payloadSize;
+
+  @Param({ "true", "false" })
+  boolean pooling;
+
+  AES256JNCryptor cryptor;
+  CryptorSession session;
+  SecretKey encryptionKey;
+  SecretKey hmacKey;
+  byte[] plaintext;
+  byte[] ciphertext;
+
+  @Setup
+  public void setUp() throws CryptorException {
+    AES256JNCryptor.setPrimitivePoolingEnabled(pooling);
+
+    Random random = new Random(42);
+    plaintext = new byte[payloadSize];
+    random.nextBytes(plaintext);
+    byte[] encryptionSalt = new byte[8];
+    random.nextBytes(encryptionSalt);
+    byte[] hmacSalt = new byte[8];
+    random.nextBytes(hmacSalt);
+
+    cryptor = new AES256JNCryptor();
+    encryptionKey = cryptor.keyForPassword(ByteArrayBenchmark.PASSWORD,
+        encryptionSalt);
+    hmacKey = cryptor.keyForPassword(ByteArrayBenchmark.PASSWORD, hmacSalt);
+    session = cryptor.createSession(encryptionKey, hmacKey);
+    ciphertext = cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+  }
+
+  @TearDown
+  public void tearDown() {
+    AES256JNCryptor.setPrimitivePoolingEnabled(true);
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws CryptorException {
+    return cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+  }
+
+  @Benchmark
+  public byte[] decrypt() throws CryptorException {
+    return cryptor.decryptData(ciphertext, encryptionKey, hmacKey);
+  }
+
+  @Benchmark
+  public byte[] sessionEncrypt() throws CryptorException {
+    return session.encryptData(plaintext);
+  }
+
+  @Benchmark
+  public byte[] sessionDecrypt() throws CryptorException {
+    return session.decryptData(ciphertext);
+  }
+}
@@ -15,9 +15,16 @@
 
 package org.cryptonode.jncryptor;
 
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
@@ -82,6 +89,12 @@ public class AES256JNCryptor implements JNCryptor {
    */
   static final String AES_CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
 
+  /**
+   * AES decryption algorithm for segments of a message that do not include
+   * the padding.
+   */
+  static final String AES_NO_PADDING_ALGORITHM = "AES/CBC/NoPadding";
+
   /**
    * HMAC algorithm
    */
@@ -122,11 +135,39 @@ public class AES256JNCryptor implements JNCryptor {
    */
   static final int SALT_LENGTH = 8;
 
+  /**
+   * The default number of bytes the streams encrypt or decrypt at a time.
+   */
+  static final int DEFAULT_STREAM_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * The default message size at or above which work is spread across the
+   * cipher executor, if one is set.
+   */
+  static final int DEFAULT_PARALLEL_THRESHOLD = 4 * 1024 * 1024;
+
+  /**
+   * The number of ciphertext bytes each parallel decryption task handles. A
+   * whole number of AES blocks.
+   */
+  static final int PARALLEL_DECRYPTION_SEGMENT_SIZE = 1024 * 1024;
+
+  /**
+   * The number of plaintext bytes encrypted before the HMAC task is told it
+   * can proceed. A whole number of AES blocks.
+   */
+  static final int PIPELINE_CHUNK_SIZE = 256 * 1024;
+
   // SecureRandom is threadsafe
   private static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
-  // Access to this variable must be synchronized
+  // Access to these variables must be synchronized
   private int iterations = PBKDF_DEFAULT_ITERATIONS;
+  private DerivedKeyCache keyCache;
+  private Executor keyDerivationExecutor;
+  private KeyDerivationEngine keyDerivationEngine = KeyDerivationEngine.JCE;
+  private Executor cipherExecutor;
+  private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
 
   /**
    * Creates a new {@code AES256JNCryptor} instance. Uses the default number of
@@ -158,16 +199,172 @@ public class AES256JNCryptor implements JNCryptor {
     Validate.notNull(password, "Password cannot be null.");
     Validate.isTrue(password.length > 0, "Password cannot be empty.");
 
+    int iterations = getPBKDFIterations();
+    KeyDerivationEngine engine = getKeyDerivationEngine();
+    Executor executor = getKeyDerivationExecutor();
+    DerivedKeyCache cache = getKeyCache();
+    if (cache == null) {
+      return deriveKey(password, salt, iterations, engine, executor);
+    }
+
+    DerivedKeyCache.Key cacheKey = cache.keyFor(password, salt, iterations);
+    SecretKey key = cache.get(cacheKey);
+    if (key == null) {
+      key = deriveKey(password, salt, iterations, engine, executor);
+      cache.put(cacheKey, key);
+    }
+    return key;
+  }
+
+  /**
+   * Generates the encryption and HMAC keys for a message. If a key derivation
+   * executor is set, the two keys are derived concurrently.
+   * 
+   * @param password
+   *          the password
+   * @param encryptionSalt
+   *          the encryption salt
+   * @param hmacSalt
+   *          the HMAC salt
+   * @return an array holding the encryption key followed by the HMAC key
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private SecretKey[] keysForPassword(final char[] password,
+      byte[] encryptionSalt, final byte[] hmacSalt) throws CryptorException {
+    Executor executor = getKeyDerivationExecutor();
+    if (executor == null) {
+      return new SecretKey[] { keyForPassword(password, encryptionSalt),
+          keyForPassword(password, hmacSalt) };
+    }
+
+    ForkedTask<SecretKey> hmacKeyTask = new ForkedTask<SecretKey>() {
+      @Override
+      SecretKey compute() throws CryptorException {
+        return keyForPassword(password, hmacSalt);
+      }
+    }.fork(executor);
+
+    SecretKey encryptionKey = keyForPassword(password, encryptionSalt);
+    return new SecretKey[] { encryptionKey, hmacKeyTask.join() };
+  }
+
+  /**
+   * Runs the PBKDF to generate a key from a password and salt.
+   * 
+   * @param password
+   *          the password
+   * @param salt
+   *          the salt
+   * @param iterations
+   *          the number of PBKDF iterations
+   * @param engine
+   *          the PBKDF2 implementation to use
+   * @param executor
+   *          the executor to compute blocks on, or {@code null} to compute
+   *          them on the calling thread
+   * @return the key
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private static SecretKey deriveKey(char[] password, byte[] salt,
+      int iterations, KeyDerivationEngine engine, Executor executor)
+      throws CryptorException {
+    if (engine != KeyDerivationEngine.JCE || executor != null) {
+      return deriveKeyByBlocks(password, salt, iterations, engine, executor);
+    }
+
+    SecretKeyFactory factory = null;
     try {
-      SecretKeyFactory factory = SecretKeyFactory
-          .getInstance(KEY_DERIVATION_ALGORITHM);
+      factory = Primitives.borrowKeyFactory();
       SecretKey tmp = factory.generateSecret(new PBEKeySpec(password, salt,
-          getPBKDFIterations(), AES_256_KEY_SIZE * 8));
+          iterations, AES_256_KEY_SIZE * 8));
       return new SecretKeySpec(tmp.getEncoded(), AES_NAME);
     } catch (GeneralSecurityException e) {
       throw new CryptorException(String.format(
           "Failed to generate key from password using %s.",
           KEY_DERIVATION_ALGORITHM), e);
+    } finally {
+      Primitives.releaseKeyFactory(factory);
+    }
+  }
+
+  /**
+   * Runs the PBKDF one output block at a time. If an executor is supplied,
+   * every block except the first is computed as a separate task while the
+   * calling thread computes the first block itself.
+   * 
+   * @param password
+   *          the password
+   * @param salt
+   *          the salt
+   * @param iterations
+   *          the number of PBKDF iterations
+   * @param engine
+   *          the PBKDF2 implementation to use
+   * @param executor
+   *          the executor to compute the remaining blocks on, or {@code null}
+   * @return the key
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private static SecretKey deriveKeyByBlocks(char[] password,
+      final byte[] salt, final int iterations, KeyDerivationEngine engine,
+      Executor executor) throws CryptorException {
+
+    byte[] passwordBytes = PBKDF2.encodePassword(password);
+    final PBKDF2 pbkdf2 = PBKDF2.getInstance(engine, passwordBytes);
+    Arrays.fill(passwordBytes, (byte) 0);
+
+    final byte[] keyData = new byte[AES_256_KEY_SIZE];
+    int blockCount = PBKDF2.blockCount(AES_256_KEY_SIZE);
+
+    try {
+      List<ForkedTask<Void>> tasks = new ArrayList<ForkedTask<Void>>(
+          blockCount - 1);
+      for (int i = 1; i < blockCount; i++) {
+        final int blockIndex = i + 1;
+        final int offset = i * PBKDF2.PRF_OUTPUT_SIZE;
+        final int length = Math.min(PBKDF2.PRF_OUTPUT_SIZE, AES_256_KEY_SIZE
+            - offset);
+        ForkedTask<Void> task = new ForkedTask<Void>() {
+          @Override
+          Void compute() throws CryptorException {
+            deriveBlock(pbkdf2, salt, iterations, blockIndex, keyData, offset,
+                length);
+            return null;
+          }
+        };
+        tasks.add(executor == null ? task : task.fork(executor));
+      }
+
+      deriveBlock(pbkdf2, salt, iterations, 1, keyData, 0,
+          PBKDF2.PRF_OUTPUT_SIZE);
+      for (ForkedTask<Void> task : tasks) {
+        task.join();
+      }
+
+      return new SecretKeySpec(keyData, AES_NAME);
+    } finally {
+      pbkdf2.destroy();
+      Arrays.fill(keyData, (byte) 0);
+    }
+  }
+
+  /**
+   * Computes one block of PBKDF2 output.
+   * 
+   * @see PBKDF2#deriveBlock(byte[], int, int, byte[], int, int)
+   */
+  private static void deriveBlock(PBKDF2 pbkdf2, byte[] salt, int iterations,
+      int blockIndex, byte[] out, int outOffset, int length)
+      throws CryptorException {
+    try {
+      pbkdf2.deriveBlock(salt, iterations, blockIndex, out, outOffset, length);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException(String.format(
+          "Failed to generate key from password using %s.",
+          KEY_DERIVATION_ALGORITHM), e);
     }
   }
 
@@ -184,145 +381,849 @@ public class AES256JNCryptor implements JNCryptor {
     this.iterations = iterations;
   }
 
+  /**
+   * Indicates whether {@code Cipher}, {@code Mac} and
+   * {@code SecretKeyFactory} instances are reused.
+   * 
+   * @return <code>true</code> if primitives are pooled
+   * @since 1.3.0
+   */
+  public static boolean isPrimitivePoolingEnabled() {
+    return Primitives.isPoolingEnabled();
+  }
+
+  /**
+   * Controls whether the JCE objects used by this library are reused. When
+   * enabled (the default), each thread keeps one idle instance of every
+   * {@code Cipher}, {@code Mac} and {@code SecretKeyFactory} type it has used
+   * and re-initialises it for the next message, instead of looking up a
+   * provider and constructing a new object each time. This setting applies to
+   * all {@code JNCryptor} instances and streams.
+   * <p>
+   * Idle instances retain the key they were last initialised with.
+   * 
+   * @param enabled
+   *          <code>true</code> to pool primitives, <code>false</code> to create
+   *          new primitives for every operation
+   * @since 1.3.0
+   */
+  public static void setPrimitivePoolingEnabled(boolean enabled) {
+    Primitives.setPoolingEnabled(enabled);
+  }
+
+  /**
+   * Gets the cache used to store keys derived from passwords.
+   * 
+   * @return the key cache, or {@code null} if caching is disabled
+   * @since 1.3.0
+   */
+  public synchronized DerivedKeyCache getKeyCache() {
+    return keyCache;
+  }
+
+  /**
+   * Sets a cache to store keys derived from passwords. Subsequent calls to
+   * {@link #keyForPassword(char[], byte[])}, including those made when
+   * encrypting or decrypting with a password, will consult the cache before
+   * running the PBKDF. Caching is disabled by default.
+   * 
+   * @param keyCache
+   *          the key cache, or {@code null} to disable caching
+   * @since 1.3.0
+   */
+  public synchronized void setKeyCache(DerivedKeyCache keyCache) {
+    this.keyCache = keyCache;
+  }
+
+  /**
+   * Gets the executor used to parallelise key derivation.
+   * 
+   * @return the executor, or {@code null} if keys are derived on the calling
+   *         thread
+   * @since 1.3.0
+   */
+  public synchronized Executor getKeyDerivationExecutor() {
+    return keyDerivationExecutor;
+  }
+
+  /**
+   * Sets an executor used to parallelise key derivation. When set, the two
+   * PBKDF2 output blocks that make up each key are computed concurrently, as
+   * are the encryption and HMAC keys for each password-based message. The
+   * calling thread always takes part in the work and will run any task the
+   * executor has not started yet, so a busy executor slows derivation down
+   * rather than blocking it. The keys produced are identical to those produced
+   * without an executor.
+   * 
+   * @param executor
+   *          the executor, or {@code null} to derive keys on the calling thread
+   * @since 1.3.0
+   */
+  public synchronized void setKeyDerivationExecutor(Executor executor) {
+    this.keyDerivationExecutor = executor;
+  }
+
+  /**
+   * Gets the executor used to encrypt and decrypt large messages in parallel.
+   * 
+   * @return the executor, or {@code null} if messages are processed on the
+   *         calling thread
+   * @since 1.3.0
+   */
+  public synchronized Executor getCipherExecutor() {
+    return cipherExecutor;
+  }
+
+  /**
+   * Sets an executor used to encrypt and decrypt large messages in parallel.
+   * This applies to the methods that take {@code byte[]} messages at least as
+   * long as the {@linkplain #setParallelThreshold(int) threshold}.
+   * <p>
+   * When decrypting with keys, the HMAC is computed on the executor while the
+   * ciphertext is decrypted, and the plaintext is returned only once the HMAC
+   * has been verified. CBC decryption of each block needs only the previous
+   * ciphertext block, so the ciphertext is split into 1&nbsp;MB segments that
+   * are decrypted concurrently, each using the preceding ciphertext block as
+   * its IV.
+   * <p>
+   * When encrypting, the HMAC is computed on the executor, trailing the
+   * cipher by one chunk of ciphertext.
+   * <p>
+   * The calling thread takes part in the work, as with
+   * {@link #setKeyDerivationExecutor(Executor)}, and the output is identical
+   * to that produced without an executor. A
+   * {@link java.util.concurrent.ForkJoinPool} is a good choice.
+   * 
+   * @param executor
+   *          the executor, or {@code null} to process messages on the calling
+   *          thread
+   * @since 1.3.0
+   */
+  public synchronized void setCipherExecutor(Executor executor) {
+    this.cipherExecutor = executor;
+  }
+
+  /**
+   * Gets the message size at or above which messages are processed in
+   * parallel.
+   * 
+   * @return the threshold in bytes
+   * @since 1.3.0
+   */
+  public synchronized int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  /**
+   * Sets the message size at or above which messages are processed in
+   * parallel, if a {@linkplain #setCipherExecutor(Executor) cipher executor}
+   * is set. The size is that of the plaintext when encrypting and of the
+   * ciphertext when decrypting. The default is 4&nbsp;MB.
+   * 
+   * @param threshold
+   *          the threshold in bytes
+   * @since 1.3.0
+   */
+  public synchronized void setParallelThreshold(int threshold) {
+    Validate.isTrue(threshold > 0, "Threshold must be positive.");
+
+    this.parallelThreshold = threshold;
+  }
+
+  /**
+   * Gets the PBKDF2 implementation used to derive keys from passwords.
+   * 
+   * @return the key derivation engine
+   * @since 1.3.0
+   */
+  public synchronized KeyDerivationEngine getKeyDerivationEngine() {
+    return keyDerivationEngine;
+  }
+
+  /**
+   * Sets the PBKDF2 implementation used to derive keys from passwords. The
+   * default is {@link KeyDerivationEngine#JCE}. All engines produce the same
+   * keys, so data encrypted with one engine can be decrypted with another.
+   * 
+   * @param keyDerivationEngine
+   *          the key derivation engine
+   * @since 1.3.0
+   */
+  public synchronized void setKeyDerivationEngine(
+      KeyDerivationEngine keyDerivationEngine) {
+    Validate.notNull(keyDerivationEngine,
+        "Key derivation engine cannot be null.");
+
+    this.keyDerivationEngine = keyDerivationEngine;
+  }
+
   /**
    * Decrypts data.
    * 
-   * @param aesCiphertext
-   *          the ciphertext from the message
+   * @param view
+   *          the message
    * @param decryptionKey
    *          the key to decrypt
    * @param hmacKey
-   *          the key to recalculate the HMAC
+   *          the key to recalculate the HMAC, or {@code null} if the HMAC has
+   *          already been verified
    * @return the decrypted data
    * @throws CryptorException
    *           if a JCE error occurs
    */
-  private byte[] decryptV2Data(AES256v2Ciphertext aesCiphertext,
+  private byte[] decryptCiphertext(CiphertextView view,
       SecretKey decryptionKey, SecretKey hmacKey) throws CryptorException {
 
-    try {
-      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-      mac.init(hmacKey);
-      byte[] hmacValue = mac.doFinal(aesCiphertext.getDataToHMAC());
+    Executor executor = getCipherExecutor();
+    ByteBuffer body = view.getCiphertext();
+    if (executor != null && body.hasArray()
+        && body.remaining() >= getParallelThreshold()) {
+      return hmacKey == null ? decryptParallel(view, decryptionKey, executor)
+          : decryptPipelined(view, decryptionKey, hmacKey, executor);
+    }
 
-      if (!arraysEqual(hmacValue, aesCiphertext.getHmac())) {
-        throw new InvalidHMACException("Incorrect HMAC value.");
+    Mac mac = null;
+    Cipher cipher = null;
+    try {
+      if (hmacKey != null) {
+        mac = Primitives.borrowHmac();
+        mac.init(hmacKey);
+        verifyHmac(view, mac);
       }
+      cipher = Primitives.borrowAesCipher();
 
-      Cipher cipher = Cipher.getInstance(AES_CIPHER_ALGORITHM);
-      cipher.init(Cipher.DECRYPT_MODE, decryptionKey, new IvParameterSpec(
-          aesCiphertext.getIv()));
-
-      return cipher.doFinal(aesCiphertext.getCiphertext());
+      return decryptVerified(view, decryptionKey, cipher);
     } catch (InvalidKeyException e) {
       throw new CryptorException(
           "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
           e);
     } catch (GeneralSecurityException e) {
       throw new CryptorException("Failed to decrypt message.", e);
+    } finally {
+      Primitives.releaseHmac(mac);
+      Primitives.releaseAesCipher(cipher);
     }
   }
 
   /**
-   * Decrypts data.
+   * Verifies the HMAC of a message and decrypts it. When the view is backed by
+   * an array, the HMAC and the cipher read the array directly and the only
+   * allocation is the returned plaintext.
+   * 
+   * @param view
+   *          the message
+   * @param decryptionKey
+   *          the key to decrypt
+   * @param cipher
+   *          the cipher to decrypt with, which will be initialised by this
+   *          method
+   * @param mac
+   *          the MAC to verify with, already initialised with the HMAC key
+   * @return the decrypted data
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws GeneralSecurityException
+   *           if a JCE error occurs
+   */
+  static byte[] decrypt(CiphertextView view, SecretKey decryptionKey,
+      Cipher cipher, Mac mac) throws InvalidHMACException,
+      GeneralSecurityException {
+
+    verifyHmac(view, mac);
+    return decryptVerified(view, decryptionKey, cipher);
+  }
+
+  private static byte[] decryptVerified(CiphertextView view,
+      SecretKey decryptionKey, Cipher cipher) throws GeneralSecurityException {
+    cipher.init(Cipher.DECRYPT_MODE, decryptionKey, new IvParameterSpec(
+        view.getIv()));
+
+    ByteBuffer body = view.getCiphertext();
+    if (body.hasArray()) {
+      return cipher.doFinal(body.array(),
+          body.arrayOffset() + body.position(), body.remaining());
+    }
+
+    byte[] plaintext = new byte[cipher.getOutputSize(body.remaining())];
+    int length = cipher.doFinal(body, ByteBuffer.wrap(plaintext));
+    return length == plaintext.length ? plaintext : Arrays.copyOf(plaintext,
+        length);
+  }
+
+  /**
+   * Decrypts a verified message by splitting the ciphertext into segments and
+   * decrypting them concurrently. Each segment is decrypted with the last
+   * ciphertext block before it as its IV. All but the last segment are
+   * decrypted without padding; the last removes the PKCS #5 padding.
+   * 
+   * @param view
+   *          the message, whose HMAC has been verified and whose ciphertext
+   *          is backed by an array
+   * @param decryptionKey
+   *          the key to decrypt
+   * @param executor
+   *          the executor to decrypt segments on
+   * @return the decrypted data
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private static byte[] decryptParallel(CiphertextView view,
+      final SecretKey decryptionKey, Executor executor)
+      throws CryptorException {
+    ByteBuffer body = view.getCiphertext();
+    final int length = body.remaining();
+    final byte[] input = body.array();
+    final int inputOffset = body.arrayOffset() + body.position();
+    final byte[] iv = view.getIv();
+    final byte[] plaintext = new byte[length];
+
+    List<ForkedTask<Integer>> tasks = new ArrayList<ForkedTask<Integer>>();
+    int segmentSize = PARALLEL_DECRYPTION_SEGMENT_SIZE;
+    for (int offset = 0; offset < length; offset += segmentSize) {
+      final int segmentOffset = offset;
+      final int segmentLength = Math.min(segmentSize, length - offset);
+      final boolean last = offset + segmentLength == length;
+      ForkedTask<Integer> task = new ForkedTask<Integer>() {
+        @Override
+        Integer compute() throws CryptorException {
+          return decryptSegment(decryptionKey, iv, input, inputOffset,
+              segmentOffset, segmentLength, last, plaintext);
+        }
+      };
+      tasks.add(task.fork(executor));
+    }
+
+    int plaintextLength = 0;
+    for (ForkedTask<Integer> task : tasks) {
+      plaintextLength += task.join();
+    }
+    return plaintextLength == length ? plaintext : Arrays.copyOf(plaintext,
+        plaintextLength);
+  }
+
+  /**
+   * Decrypts one segment of a message for {@link #decryptParallel}.
+   * 
+   * @return the number of plaintext bytes written
+   */
+  private static int decryptSegment(SecretKey decryptionKey, byte[] iv,
+      byte[] input, int inputOffset, int segmentOffset, int segmentLength,
+      boolean last, byte[] plaintext) throws CryptorException {
+    Cipher cipher = null;
+    try {
+      cipher = last ? Primitives.borrowAesCipher() : Primitives
+          .borrowAesNoPaddingCipher();
+      IvParameterSpec segmentIv = segmentOffset == 0 ? new IvParameterSpec(iv)
+          : new IvParameterSpec(input, inputOffset + segmentOffset
+              - AES_BLOCK_SIZE, AES_BLOCK_SIZE);
+      cipher.init(Cipher.DECRYPT_MODE, decryptionKey, segmentIv);
+      return cipher.doFinal(input, inputOffset + segmentOffset, segmentLength,
+          plaintext, segmentOffset);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to decrypt message.", e);
+    } finally {
+      if (last) {
+        Primitives.releaseAesCipher(cipher);
+      } else {
+        Primitives.releaseAesNoPaddingCipher(cipher);
+      }
+    }
+  }
+
+  /**
+   * Verifies the HMAC of a message on the executor while decrypting it, and
+   * returns the plaintext only if the HMAC matches. If it does not, any
+   * decryption error is suppressed so that the padding of a modified message
+   * is never reported.
    * 
-   * @param aesCiphertext
-   *          the ciphertext from the message
+   * @param view
+   *          the message, whose ciphertext is backed by an array
    * @param decryptionKey
    *          the key to decrypt
    * @param hmacKey
    *          the key to recalculate the HMAC
+   * @param executor
+   *          the executor to verify the HMAC and decrypt segments on
    * @return the decrypted data
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
    * @throws CryptorException
    *           if a JCE error occurs
    */
-  private byte[] decryptV3Data(AES256v3Ciphertext aesCiphertext,
-      SecretKey decryptionKey, SecretKey hmacKey) throws CryptorException {
+  private static byte[] decryptPipelined(final CiphertextView view,
+      SecretKey decryptionKey, final SecretKey hmacKey, Executor executor)
+      throws CryptorException {
+    // Forked first, so it starts before the decryption segments
+    ForkedTask<Boolean> hmacTask = new ForkedTask<Boolean>() {
+      @Override
+      Boolean compute() throws CryptorException {
+        return hmacMatches(view, hmacKey);
+      }
+    }.fork(executor);
 
+    byte[] plaintext = null;
+    CryptorException failure = null;
     try {
-      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
-      mac.init(hmacKey);
-      byte[] hmacValue = mac.doFinal(aesCiphertext.getDataToHMAC());
+      plaintext = decryptParallel(view, decryptionKey, executor);
+    } catch (CryptorException e) {
+      failure = e;
+    }
+
+    if (!hmacTask.join()) {
+      if (plaintext != null) {
+        Arrays.fill(plaintext, (byte) 0);
+      }
+      throw new InvalidHMACException("Incorrect HMAC value.");
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return plaintext;
+  }
+
+  /**
+   * Encrypts a message in chunks on the calling thread while the HMAC is
+   * computed on the executor, one chunk behind the cipher. The output is
+   * identical to that of
+   * {@link #encrypt(byte[], SecretKey, byte[], byte[], byte[], Cipher, Mac)}.
+   * 
+   * @param plaintext
+   *          the plaintext
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param iv
+   *          the IV
+   * @param encryptionSalt
+   *          the encryption salt, or {@code null} for key-based output
+   * @param hmacSalt
+   *          the HMAC salt, or {@code null} for key-based output
+   * @param executor
+   *          the executor to compute the HMAC on
+   * @return the ciphertext
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private static byte[] encryptPipelined(byte[] plaintext,
+      SecretKey encryptionKey, final SecretKey hmacKey, byte[] iv,
+      byte[] encryptionSalt, byte[] hmacSalt, Executor executor)
+      throws CryptorException {
 
-      if (!arraysEqual(hmacValue, aesCiphertext.getHmac())) {
-        throw new InvalidHMACException("Incorrect HMAC value.");
+    final byte[] output = new byte[getEncryptedSize(plaintext.length,
+        encryptionSalt != null)];
+    ByteBuffer header = ByteBuffer.wrap(output);
+    putHeader(header, encryptionSalt, hmacSalt, iv);
+    final int headerLength = header.position();
+    final int hmacOffset = output.length - AES256Ciphertext.HMAC_SIZE;
+    final ChunkProgress progress = new ChunkProgress(headerLength);
+
+    ForkedTask<Void> hmacTask = new ForkedTask<Void>() {
+      @Override
+      Void compute() throws CryptorException {
+        Mac mac = null;
+        try {
+          mac = Primitives.borrowHmac();
+          mac.init(hmacKey);
+          int position = 0;
+          while (position < hmacOffset) {
+            int end = progress.awaitBeyond(position);
+            mac.update(output, position, end - position);
+            position = end;
+          }
+          mac.doFinal(output, hmacOffset);
+          return null;
+        } catch (GeneralSecurityException e) {
+          throw new CryptorException("Failed to generate ciphertext.", e);
+        } finally {
+          Primitives.releaseHmac(mac);
+        }
       }
+    }.fork(executor);
 
-      Cipher cipher = Cipher.getInstance(AES_CIPHER_ALGORITHM);
-      cipher.init(Cipher.DECRYPT_MODE, decryptionKey, new IvParameterSpec(
-          aesCiphertext.getIv()));
+    Cipher cipher = null;
+    try {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
 
-      return cipher.doFinal(aesCiphertext.getCiphertext());
+      int index = headerLength;
+      int offset = 0;
+      while (plaintext.length - offset > PIPELINE_CHUNK_SIZE) {
+        index += cipher.update(plaintext, offset, PIPELINE_CHUNK_SIZE, output,
+            index);
+        offset += PIPELINE_CHUNK_SIZE;
+        progress.advance(index);
+      }
+      index += cipher.doFinal(plaintext, offset, plaintext.length - offset,
+          output, index);
+      progress.advance(index);
     } catch (InvalidKeyException e) {
+      progress.fail();
       throw new CryptorException(
           "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
           e);
     } catch (GeneralSecurityException e) {
-      throw new CryptorException("Failed to decrypt message.", e);
+      progress.fail();
+      throw new CryptorException("Failed to generate ciphertext.", e);
+    } catch (RuntimeException e) {
+      progress.fail();
+      throw e;
+    } finally {
+      Primitives.releaseAesCipher(cipher);
     }
-  }
 
-  @Override
-  public byte[] decryptData(byte[] ciphertext, char[] password)
-      throws CryptorException {
-    Validate.notNull(ciphertext, "Ciphertext cannot be null.");
-    Validate.notNull(password, "Password cannot be null.");
-    Validate.isTrue(password.length > 0, "Password cannot be empty.");
+    hmacTask.join();
+    return output;
+  }
 
-    // I don't like the magic numbers here, but can't think of a pleasant way
-    // to solve this
-    int version = readVersionNumber(ciphertext);
-    switch (version) {
-    case 2:
-      return decryptV2Data(ciphertext, password);
+  /**
+   * Recomputes the HMAC of a message and compares it with the stored value.
+   * 
+   * @param view
+   *          the message
+   * @param mac
+   *          the MAC to verify with, already initialised with the HMAC key
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   */
+  private static void verifyHmac(CiphertextView view, Mac mac)
+      throws InvalidHMACException {
+    if (!hmacMatches(view, mac)) {
+      throw new InvalidHMACException("Incorrect HMAC value.");
+    }
+  }
 
-    case 3:
-      return decryptV3Data(ciphertext, password);
+  /**
+   * Recomputes the HMAC of a message and compares it with the stored value.
+   * 
+   * @param view
+   *          the message
+   * @param mac
+   *          the MAC to verify with, already initialised with the HMAC key
+   * @return <code>true</code> if the HMAC matches
+   */
+  static boolean hmacMatches(CiphertextView view, Mac mac) {
+    mac.update(view.getDataToHMAC());
+    return arraysEqual(mac.doFinal(), view.getHmac());
+  }
 
-    default:
-      throw new CryptorException(String.format(
-          "Unrecognised version number: %d.", version));
+  /**
+   * Derives the keys for a password-based message, deriving the HMAC key
+   * first and the encryption key only once the HMAC has been verified. A
+   * message with the wrong password or modified content therefore costs one
+   * PBKDF2 run rather than two. This holds with a key derivation executor
+   * too, which only speeds up each key.
+   * 
+   * @param view
+   *          the password-based message
+   * @param password
+   *          the password
+   * @return the decryption key, or {@code null} if the HMAC does not match
+   * @throws CryptorException
+   *           if a JCE error occurs
+   */
+  private SecretKey verifiedDecryptionKey(CiphertextView view, char[] password)
+      throws CryptorException {
+    SecretKey hmacKey = keyForPassword(password, view.getHmacSalt());
+    if (!hmacMatches(view, hmacKey)) {
+      return null;
     }
 
+    return keyForPassword(password, view.getEncryptionSalt());
   }
 
-  private byte[] decryptV2Data(byte[] ciphertext, char[] password)
+  private static boolean hmacMatches(CiphertextView view, SecretKey hmacKey)
       throws CryptorException {
+    Mac mac = null;
     try {
-      AES256v2Ciphertext aesCiphertext = new AES256v2Ciphertext(ciphertext);
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+      return hmacMatches(view, mac);
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to decrypt message.", e);
+    } finally {
+      Primitives.releaseHmac(mac);
+    }
+  }
 
-      if (!aesCiphertext.isPasswordBased()) {
-        throw new IllegalArgumentException(
-            "Ciphertext was not encrypted with a password.");
-      }
+  /**
+   * Encrypts data and produces the version 3 output format.
+   * 
+   * @param plaintext
+   *          the data to encrypt
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param iv
+   *          the IV
+   * @param encryptionSalt
+   *          the encryption salt, or {@code null} for key-based output
+   * @param hmacSalt
+   *          the HMAC salt, or {@code null} for key-based output
+   * @param cipher
+   *          the cipher to encrypt with, which will be initialised by this
+   *          method
+   * @param mac
+   *          the MAC to use, already initialised with the HMAC key
+   * @return the ciphertext
+   * @throws GeneralSecurityException
+   *           if a JCE error occurs
+   */
+  static byte[] encrypt(byte[] plaintext, SecretKey encryptionKey, byte[] iv,
+      byte[] encryptionSalt, byte[] hmacSalt, Cipher cipher, Mac mac)
+      throws GeneralSecurityException {
+
+    // The output is sized exactly and the header, ciphertext and HMAC are all
+    // written straight into it, so this is the only allocation per message
+    byte[] output = new byte[getEncryptedSize(plaintext.length,
+        encryptionSalt != null)];
+
+    int index = 0;
+    output[index++] = (byte) VERSION;
+    if (encryptionSalt != null) {
+      output[index++] = (byte) AES256Ciphertext.FLAG_PASSWORD;
+      System.arraycopy(encryptionSalt, 0, output, index, encryptionSalt.length);
+      index += encryptionSalt.length;
+      System.arraycopy(hmacSalt, 0, output, index, hmacSalt.length);
+      index += hmacSalt.length;
+    } else {
+      output[index++] = 0;
+    }
+    System.arraycopy(iv, 0, output, index, iv.length);
+    index += iv.length;
 
-      SecretKey decryptionKey = keyForPassword(password,
-          aesCiphertext.getEncryptionSalt());
-      SecretKey hmacKey = keyForPassword(password, aesCiphertext.getHmacSalt());
+    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    index += cipher.doFinal(plaintext, 0, plaintext.length, output, index);
 
-      return decryptV2Data(aesCiphertext, decryptionKey, hmacKey);
-    } catch (InvalidDataException e) {
-      throw new CryptorException("Unable to parse ciphertext.", e);
-    }
+    mac.update(output, 0, index);
+    mac.doFinal(output, index);
+    return output;
   }
 
-  private byte[] decryptV3Data(byte[] ciphertext, char[] password)
+  @Override
+  public byte[] decryptData(byte[] ciphertext, char[] password)
       throws CryptorException {
-    try {
-      AES256v3Ciphertext aesCiphertext = new AES256v3Ciphertext(ciphertext);
+    Validate.notNull(ciphertext, "Ciphertext cannot be null.");
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.isTrue(password.length > 0, "Password cannot be empty.");
 
-      if (!aesCiphertext.isPasswordBased()) {
-        throw new IllegalArgumentException(
-            "Ciphertext was not encrypted with a password.");
-      }
+    CiphertextView view = parseCiphertext(ciphertext);
 
-      SecretKey decryptionKey = keyForPassword(password,
-          aesCiphertext.getEncryptionSalt());
-      SecretKey hmacKey = keyForPassword(password, aesCiphertext.getHmacSalt());
+    if (!view.isPasswordBased()) {
+      throw new IllegalArgumentException(
+          "Ciphertext was not encrypted with a password.");
+    }
 
-      return decryptV3Data(aesCiphertext, decryptionKey, hmacKey);
-    } catch (InvalidDataException e) {
-      throw new CryptorException("Unable to parse ciphertext.", e);
+    SecretKey decryptionKey = verifiedDecryptionKey(view, password);
+    if (decryptionKey == null) {
+      throw new InvalidHMACException("Incorrect HMAC value.");
+    }
+
+    return decryptCiphertext(view, decryptionKey, null);
+  }
+
+  /**
+   * Decrypts data with a password, reporting rejected messages through the
+   * result rather than by throwing an exception. The HMAC key is derived and
+   * checked before the encryption key is derived, so a rejected message costs
+   * half as much as a successful one.
+   * 
+   * @param ciphertext
+   *          data to decrypt. Must be in the format described at <a href=
+   *          "https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-Spec-v3.md"
+   *          >https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor
+   *          -Spec-v3.md</a>
+   * @param password
+   *          password to use for the decryption. Cannot be empty or
+   *          <code>null</code>.
+   * @return the result, which has status
+   *         {@link DecryptionResult.Status#INVALID_DATA} if the data cannot be
+   *         parsed or was not encrypted with a password, and
+   *         {@link DecryptionResult.Status#INVALID_HMAC} if the HMAC does not
+   *         match
+   * @throws CryptorException
+   *           if a JCE error occurs
+   * @since 1.3.0
+   */
+  public DecryptionResult tryDecryptData(byte[] ciphertext, char[] password)
+      throws CryptorException {
+    Validate.notNull(ciphertext, "Ciphertext cannot be null.");
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.isTrue(password.length > 0, "Password cannot be empty.");
+
+    CiphertextView view = tryParseCiphertext(ciphertext);
+    if (view == null || !view.isPasswordBased()) {
+      return DecryptionResult.INVALID_DATA;
+    }
+
+    SecretKey decryptionKey = verifiedDecryptionKey(view, password);
+    if (decryptionKey == null) {
+      return DecryptionResult.INVALID_HMAC;
+    }
+
+    return DecryptionResult.success(decryptCiphertext(view, decryptionKey,
+        null));
+  }
+
+  /**
+   * Decrypts data with keys, reporting rejected messages through the result
+   * rather than by throwing an exception.
+   * 
+   * @param ciphertext
+   *          data to decrypt. Must be in the format described at <a href=
+   *          "https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-Spec-v3.md"
+   *          >https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor
+   *          -Spec-v3.md</a>
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to verify the HMAC with
+   * @return the result, which has status
+   *         {@link DecryptionResult.Status#INVALID_DATA} if the data cannot be
+   *         parsed and {@link DecryptionResult.Status#INVALID_HMAC} if the
+   *         HMAC does not match
+   * @throws CryptorException
+   *           if a JCE error occurs
+   * @since 1.3.0
+   */
+  public DecryptionResult tryDecryptData(byte[] ciphertext,
+      SecretKey decryptionKey, SecretKey hmacKey) throws CryptorException {
+    Validate.notNull(ciphertext, "Ciphertext cannot be null.");
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    CiphertextView view = tryParseCiphertext(ciphertext);
+    if (view == null) {
+      return DecryptionResult.INVALID_DATA;
+    }
+
+    if (!hmacMatches(view, hmacKey)) {
+      return DecryptionResult.INVALID_HMAC;
+    }
+
+    return DecryptionResult.success(decryptCiphertext(view, decryptionKey,
+        null));
+  }
+
+  /**
+   * Decrypts a batch of messages encrypted with the same password. The headers
+   * are read first and the messages grouped by their salt values, so each
+   * distinct pair of keys is derived only once however many messages share
+   * it. This is the case for messages encrypted with the same
+   * {@link PasswordKey} instances. As with a single message, the encryption
+   * key for a group is derived only if at least one HMAC in the group matches.
+   * <p>
+   * If a {@linkplain #setKeyDerivationExecutor(Executor) key derivation
+   * executor} is set, the groups are processed concurrently, with the calling
+   * thread taking part.
+   * 
+   * @param ciphertexts
+   *          the messages to decrypt
+   * @param password
+   *          password to use for the decryption. Cannot be empty or
+   *          <code>null</code>.
+   * @return one result per message, in the same order as
+   *         {@code ciphertexts}. A message that cannot be parsed, was not
+   *         encrypted with a password or is {@code null} has status
+   *         {@link DecryptionResult.Status#INVALID_DATA}, one whose HMAC
+   *         does not match has status
+   *         {@link DecryptionResult.Status#INVALID_HMAC}, and one that cannot
+   *         be decrypted despite a matching HMAC has status
+   *         {@link DecryptionResult.Status#FAILED}.
+   * @throws CryptorException
+   *           if a key cannot be derived
+   * @since 1.3.0
+   */
+  public List<DecryptionResult> decryptAll(List<byte[]> ciphertexts,
+      final char[] password) throws CryptorException {
+    Validate.notNull(ciphertexts, "Ciphertexts cannot be null.");
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.isTrue(password.length > 0, "Password cannot be empty.");
+
+    final DecryptionResult[] results = new DecryptionResult[ciphertexts.size()];
+    final CiphertextView[] views = new CiphertextView[results.length];
+
+    // Keyed on the encryption salt followed by the HMAC salt, in the order
+    // first seen so that the work is spread the same way on each call
+    Map<ByteBuffer, List<Integer>> groups =
+        new LinkedHashMap<ByteBuffer, List<Integer>>();
+    int index = 0;
+    for (byte[] ciphertext : ciphertexts) {
+      CiphertextView view = ciphertext == null ? null
+          : tryParseCiphertext(ciphertext);
+      if (view == null || !view.isPasswordBased()) {
+        results[index++] = DecryptionResult.INVALID_DATA;
+        continue;
+      }
+
+      ByteBuffer salts = ByteBuffer.allocate(2 * SALT_LENGTH);
+      salts.put(view.getEncryptionSalt()).put(view.getHmacSalt()).flip();
+      List<Integer> members = groups.get(salts);
+      if (members == null) {
+        members = new ArrayList<Integer>();
+        groups.put(salts, members);
+      }
+      members.add(index);
+      views[index++] = view;
+    }
+
+    Executor executor = getKeyDerivationExecutor();
+    List<ForkedTask<Void>> tasks = new ArrayList<ForkedTask<Void>>(
+        groups.size());
+    for (final List<Integer> members : groups.values()) {
+      ForkedTask<Void> task = new ForkedTask<Void>() {
+        @Override
+        Void compute() throws CryptorException {
+          decryptGroup(views, members, password, results);
+          return null;
+        }
+      };
+      tasks.add(executor == null || tasks.isEmpty() ? task : task
+          .fork(executor));
+    }
+
+    for (ForkedTask<Void> task : tasks) {
+      task.join();
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Derives the HMAC key for a group of messages that share salt values and
+   * verifies each message, then derives the encryption key and decrypts the
+   * messages that passed. A group in which no message passes, for example
+   * because the password is wrong, therefore costs one PBKDF2 run rather than
+   * two.
+   */
+  private void decryptGroup(CiphertextView[] views, List<Integer> members,
+      char[] password, DecryptionResult[] results) throws CryptorException {
+    CiphertextView first = views[members.get(0)];
+    SecretKey hmacKey = keyForPassword(password, first.getHmacSalt());
+
+    List<Integer> verified = new ArrayList<Integer>(members.size());
+    for (int member : members) {
+      if (hmacMatches(views[member], hmacKey)) {
+        verified.add(member);
+      } else {
+        results[member] = DecryptionResult.INVALID_HMAC;
+      }
+    }
+    if (verified.isEmpty()) {
+      return;
+    }
+
+    SecretKey decryptionKey = keyForPassword(password,
+        first.getEncryptionSalt());
+    for (int member : verified) {
+      try {
+        results[member] = DecryptionResult.success(decryptCiphertext(
+            views[member], decryptionKey, null));
+      } catch (CryptorException e) {
+        results[member] = DecryptionResult.failure(e);
+      }
     }
   }
 
@@ -339,12 +1240,11 @@ public class AES256JNCryptor implements JNCryptor {
     Validate.isCorrectLength(hmacSalt, SALT_LENGTH, "HMAC salt");
     Validate.isCorrectLength(iv, AES_BLOCK_SIZE, "IV");
     
-    SecretKey encryptionKey = keyForPassword(password, encryptionSalt);
-    SecretKey hmacKey = keyForPassword(password, hmacSalt);
+    SecretKey[] keys = keysForPassword(password, encryptionSalt, hmacSalt);
     
     return encryptData(plaintext,
-        new PasswordKey(encryptionKey, encryptionSalt), new PasswordKey(
-            hmacKey, hmacSalt), iv);
+        new PasswordKey(keys[0], encryptionSalt), new PasswordKey(
+            keys[1], hmacSalt), iv);
   }
 
   @Override
@@ -387,26 +1287,62 @@ public class AES256JNCryptor implements JNCryptor {
     Validate.notNull(decryptionKey, "Decryption key cannot be null.");
     Validate.notNull(hmacKey, "HMAC key cannot be null.");
 
-    try {
-      int version = readVersionNumber(ciphertext);
-
-      switch (version) {
-      case 2:
-        return decryptV2Data(new AES256v2Ciphertext(ciphertext), decryptionKey,
-            hmacKey);
-      case 3:
-        return decryptV3Data(new AES256v3Ciphertext(ciphertext), decryptionKey,
-            hmacKey);
-      default:
-        throw new CryptorException(String.format(
-            "Unrecognised version number: %d.", version));
-      }
+    return decryptCiphertext(parseCiphertext(ciphertext), decryptionKey,
+        hmacKey);
+  }
+
+  /**
+   * Parses ciphertext in any supported version of the data format. The
+   * returned view refers to {@code ciphertext} rather than copying it.
+   * 
+   * @param ciphertext
+   *          the ciphertext
+   * @return the parsed ciphertext
+   * @throws CryptorException
+   *           if the version is not recognised or the data cannot be parsed
+   */
+  static CiphertextView parseCiphertext(byte[] ciphertext)
+      throws CryptorException {
+    int version = readVersionNumber(ciphertext);
 
+    if (version != AES256Ciphertext.V2_VERSION
+        && version != AES256Ciphertext.V3_VERSION) {
+      throw new CryptorException(String.format(
+          "Unrecognised version number: %d.", version));
+    }
+
+    try {
+      return CiphertextView.parse(ciphertext, 0, ciphertext.length);
     } catch (InvalidDataException e) {
       throw new CryptorException("Unable to parse ciphertext.", e);
     }
   }
 
+  /**
+   * Parses ciphertext in any supported version of the data format.
+   * 
+   * @param ciphertext
+   *          the ciphertext
+   * @return the parsed ciphertext, or {@code null} if it is not valid
+   */
+  static CiphertextView tryParseCiphertext(byte[] ciphertext) {
+    if (ciphertext.length == 0) {
+      return null;
+    }
+
+    int version = ciphertext[0];
+    if (version != AES256Ciphertext.V2_VERSION
+        && version != AES256Ciphertext.V3_VERSION) {
+      return null;
+    }
+
+    try {
+      return CiphertextView.parse(ciphertext, 0, ciphertext.length);
+    } catch (InvalidDataException e) {
+      return null;
+    }
+  }
+
   @Override
   public byte[] encryptData(byte[] plaintext, SecretKey encryptionKey,
       SecretKey hmacKey) throws CryptorException {
@@ -417,21 +1353,26 @@ public class AES256JNCryptor implements JNCryptor {
 
     byte[] iv = getSecureRandomData(AES_BLOCK_SIZE);
 
-    try {
-      Cipher cipher = Cipher.getInstance(AES_CIPHER_ALGORITHM);
-      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
-      byte[] ciphertext = cipher.doFinal(plaintext);
-
-      AES256v3Ciphertext output = new AES256v3Ciphertext(iv, ciphertext);
+    Executor executor = getCipherExecutor();
+    if (executor != null && plaintext.length >= getParallelThreshold()) {
+      return encryptPipelined(plaintext, encryptionKey, hmacKey, iv, null,
+          null, executor);
+    }
 
-      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+    Cipher cipher = null;
+    Mac mac = null;
+    try {
+      cipher = Primitives.borrowAesCipher();
+      mac = Primitives.borrowHmac();
       mac.init(hmacKey);
-      byte[] hmac = mac.doFinal(output.getDataToHMAC());
-      output.setHmac(hmac);
-      return output.getRawData();
+
+      return encrypt(plaintext, encryptionKey, iv, null, null, cipher, mac);
 
     } catch (GeneralSecurityException e) {
       throw new CryptorException("Failed to generate ciphertext.", e);
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
     }
   }
 
@@ -476,19 +1417,22 @@ public class AES256JNCryptor implements JNCryptor {
   }
   
   byte[] encryptData(byte[] plaintext, PasswordKey encryptionKey, PasswordKey hmacKey, byte[] iv) throws CryptorException {
-    try {
-      Cipher cipher = Cipher.getInstance(AES_CIPHER_ALGORITHM);
-      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey.getKey(), new IvParameterSpec(iv));
-      byte[] ciphertext = cipher.doFinal(plaintext);
-
-      AES256v3Ciphertext output = new AES256v3Ciphertext(encryptionKey.getSalt(),
-          hmacKey.getSalt(), iv, ciphertext);
+    Executor executor = getCipherExecutor();
+    if (executor != null && plaintext.length >= getParallelThreshold()) {
+      return encryptPipelined(plaintext, encryptionKey.getKey(),
+          hmacKey.getKey(), iv, encryptionKey.getSalt(), hmacKey.getSalt(),
+          executor);
+    }
 
-      Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+    Cipher cipher = null;
+    Mac mac = null;
+    try {
+      cipher = Primitives.borrowAesCipher();
+      mac = Primitives.borrowHmac();
       mac.init(hmacKey.getKey());
-      byte[] hmac = mac.doFinal(output.getDataToHMAC());
-      output.setHmac(hmac);
-      return output.getRawData();
+
+      return encrypt(plaintext, encryptionKey.getKey(), iv,
+          encryptionKey.getSalt(), hmacKey.getSalt(), cipher, mac);
 
     } catch (InvalidKeyException e) {
       throw new CryptorException(
@@ -496,7 +1440,10 @@ public class AES256JNCryptor implements JNCryptor {
           e);
     } catch (GeneralSecurityException e) {
       throw new CryptorException("Failed to generate ciphertext.", e);
-    }    
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+    }
   }
 
   @Override
@@ -506,4 +1453,559 @@ public class AES256JNCryptor implements JNCryptor {
     SECURE_RANDOM.nextBytes(iv);
     return encryptData(plaintext, encryptionKey, hmacKey, iv);
   }
+
+  /**
+   * Encrypts a batch of records with keys. The IVs for the whole batch are
+   * drawn from the random number generator in one call, and each worker
+   * initialises its MAC once for all the records it handles.
+   * <p>
+   * If a {@linkplain #setCipherExecutor(Executor) cipher executor} is set,
+   * the records are divided into contiguous ranges that are encrypted
+   * concurrently, with the calling thread taking part. Otherwise they are
+   * encrypted on the calling thread.
+   * 
+   * @param plaintexts
+   *          the records to encrypt
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @return one result per record, in the same order as {@code plaintexts}. A
+   *         record that cannot be encrypted (for example, a {@code null}
+   *         element) has a failed result and does not affect the others.
+   * @since 1.3.0
+   */
+  public List<EncryptionResult> encryptAll(List<byte[]> plaintexts,
+      SecretKey encryptionKey, SecretKey hmacKey) {
+    Validate.notNull(plaintexts, "Plaintexts cannot be null.");
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return encryptAll(plaintexts, encryptionKey, hmacKey, null, null);
+  }
+
+  /**
+   * Encrypts a batch of records with keys derived from a password, as
+   * {@link #encryptAll(List, SecretKey, SecretKey)} does. Every record uses
+   * the salt values of the keys.
+   * 
+   * @param plaintexts
+   *          the records to encrypt
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @return one result per record, in the same order as {@code plaintexts}
+   * @since 1.3.0
+   */
+  public List<EncryptionResult> encryptAll(List<byte[]> plaintexts,
+      PasswordKey encryptionKey, PasswordKey hmacKey) {
+    Validate.notNull(plaintexts, "Plaintexts cannot be null.");
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return encryptAll(plaintexts, encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt());
+  }
+
+  private List<EncryptionResult> encryptAll(List<byte[]> plaintexts,
+      final SecretKey encryptionKey, final SecretKey hmacKey,
+      final byte[] encryptionSalt, final byte[] hmacSalt) {
+    // Copy the list once so workers can index it without synchronisation
+    final byte[][] records = plaintexts.toArray(new byte[plaintexts.size()][]);
+    final EncryptionResult[] results = new EncryptionResult[records.length];
+    final byte[] ivs = getSecureRandomData(records.length * AES_BLOCK_SIZE);
+
+    Executor executor = getCipherExecutor();
+    int taskCount = executor == null ? 1 : Math.min(records.length, Runtime
+        .getRuntime().availableProcessors());
+
+    List<ForkedTask<Void>> tasks = new ArrayList<ForkedTask<Void>>(taskCount);
+    for (int i = 0; i < taskCount; i++) {
+      final int start = (int) ((long) records.length * i / taskCount);
+      final int end = (int) ((long) records.length * (i + 1) / taskCount);
+      ForkedTask<Void> task = new ForkedTask<Void>() {
+        @Override
+        Void compute() {
+          encryptRange(records, start, end, ivs, encryptionKey, hmacKey,
+              encryptionSalt, hmacSalt, results);
+          return null;
+        }
+      };
+      tasks.add(i == 0 ? task : task.fork(executor));
+    }
+
+    for (ForkedTask<Void> task : tasks) {
+      try {
+        task.join();
+      } catch (CryptorException e) {
+        // encryptRange records failures in the results instead of throwing
+        throw new IllegalStateException(e);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  /**
+   * Encrypts records {@code start} to {@code end} of a batch with one cipher
+   * and MAC, storing a result for each.
+   */
+  private static void encryptRange(byte[][] records, int start, int end,
+      byte[] ivs, SecretKey encryptionKey, SecretKey hmacKey,
+      byte[] encryptionSalt, byte[] hmacSalt, EncryptionResult[] results) {
+    Cipher cipher = null;
+    Mac mac = null;
+    try {
+      cipher = Primitives.borrowAesCipher();
+      mac = Primitives.borrowHmac();
+      // doFinal resets the MAC with the same key, so this lasts the range
+      mac.init(hmacKey);
+    } catch (GeneralSecurityException e) {
+      CryptorException failure = new CryptorException(
+          "Failed to generate ciphertext.", e);
+      Arrays.fill(results, start, end, EncryptionResult.failure(failure));
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+      return;
+    }
+
+    try {
+      for (int i = start; i < end; i++) {
+        if (records[i] == null) {
+          results[i] = EncryptionResult.failure(new CryptorException(
+              "Plaintext cannot be null."));
+          continue;
+        }
+
+        byte[] iv = Arrays.copyOfRange(ivs, i * AES_BLOCK_SIZE, (i + 1)
+            * AES_BLOCK_SIZE);
+        try {
+          results[i] = EncryptionResult.success(encrypt(records[i],
+              encryptionKey, iv, encryptionSalt, hmacSalt, cipher, mac));
+        } catch (GeneralSecurityException e) {
+          mac.reset();
+          results[i] = EncryptionResult.failure(new CryptorException(
+              "Failed to generate ciphertext.", e));
+        }
+      }
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+    }
+  }
+
+  /**
+   * Creates a session bound to a pair of keys. A session prepares its cipher
+   * and HMAC state once, so encrypting or decrypting many messages with the
+   * same keys avoids repeating provider lookups and key setup for every
+   * message.
+   * 
+   * @param encryptionKey
+   *          key to use for encryption and decryption
+   * @param hmacKey
+   *          key to use for computing the HMAC
+   * @return the session
+   * @throws CryptorException
+   *           if the keys cannot be used
+   * @since 1.3.0
+   */
+  public CryptorSession createSession(SecretKey encryptionKey,
+      SecretKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return new CryptorSession(encryptionKey, hmacKey, null, null);
+  }
+
+  /**
+   * Creates a session bound to a pair of pre-computed password keys. Data
+   * encrypted by the session is produced in the password output format (i.e.
+   * including salt values).
+   * 
+   * @param encryptionKey
+   *          the pre-computed encryption key
+   * @param hmacKey
+   *          the pre-computed HMAC key
+   * @return the session
+   * @throws CryptorException
+   *           if the keys cannot be used
+   * @since 1.3.0
+   */
+  public CryptorSession createSession(PasswordKey encryptionKey,
+      PasswordKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return new CryptorSession(encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt());
+  }
+
+  /**
+   * Returns the exact size of the version 3 output produced when encrypting
+   * plaintext of a given length. Use this to size the destination buffer for
+   * {@link #encrypt(ByteBuffer, ByteBuffer, SecretKey, SecretKey)} and
+   * {@link #encrypt(ByteBuffer, ByteBuffer, PasswordKey, PasswordKey)}.
+   * 
+   * @param plaintextLength
+   *          the number of plaintext bytes
+   * @param passwordBased
+   *          <code>true</code> if the output will include salt values
+   * @return the number of bytes in the output
+   * @since 1.3.0
+   */
+  public static int getEncryptedSize(int plaintextLength, boolean passwordBased) {
+    Validate.isTrue(plaintextLength >= 0, "Length cannot be negative.");
+
+    int paddedLength = (plaintextLength / AES_BLOCK_SIZE + 1) * AES_BLOCK_SIZE;
+    int overhead = passwordBased ? AES256Ciphertext.MINIMUM_LENGTH_WITH_PASSWORD
+        : AES256Ciphertext.MINIMUM_LENGTH_WITHOUT_PASSWORD;
+    return overhead + paddedLength;
+  }
+
+  /**
+   * Returns an upper bound on the size of the plaintext contained in a
+   * message of a given length. Use this to size the destination buffer for
+   * {@link #decrypt(ByteBuffer, ByteBuffer, SecretKey, SecretKey)} and
+   * {@link #decrypt(ByteBuffer, ByteBuffer, char[])}.
+   * 
+   * @param ciphertextLength
+   *          the number of bytes in the message
+   * @return the maximum number of plaintext bytes
+   * @since 1.3.0
+   */
+  public static int getMaxDecryptedSize(int ciphertextLength) {
+    Validate.isTrue(ciphertextLength >= 0, "Length cannot be negative.");
+
+    return Math.max(0, ciphertextLength
+        - AES256Ciphertext.MINIMUM_LENGTH_WITHOUT_PASSWORD);
+  }
+
+  /**
+   * Encrypts the remaining bytes of {@code src} with the supplied keys and
+   * writes the version 3 output to {@code dst}. Either buffer may be direct.
+   * On success, the position of {@code src} is advanced to its limit and the
+   * position of {@code dst} is advanced past the output. On failure, neither
+   * position is changed. The buffers must not overlap.
+   * 
+   * @param src
+   *          the plaintext
+   * @param dst
+   *          the buffer to write the ciphertext to, which must have at least
+   *          {@link #getEncryptedSize(int, boolean)} bytes remaining
+   * @param encryptionKey
+   *          key to use for encryption
+   * @param hmacKey
+   *          key to use for computing the HMAC
+   * @return the number of bytes written to {@code dst}
+   * @throws CryptorException
+   *           if an error occurred
+   * @since 1.3.0
+   */
+  public int encrypt(ByteBuffer src, ByteBuffer dst, SecretKey encryptionKey,
+      SecretKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return encrypt(src, dst, encryptionKey, hmacKey, null, null);
+  }
+
+  /**
+   * Encrypts the remaining bytes of {@code src} using pre-computed keys and
+   * writes the output to {@code dst} in the password format (i.e. including
+   * salt values). Buffer handling is the same as for
+   * {@link #encrypt(ByteBuffer, ByteBuffer, SecretKey, SecretKey)}.
+   * 
+   * @param src
+   *          the plaintext
+   * @param dst
+   *          the buffer to write the ciphertext to, which must have at least
+   *          {@link #getEncryptedSize(int, boolean)} bytes remaining
+   * @param encryptionKey
+   *          the pre-computed encryption key
+   * @param hmacKey
+   *          the pre-computed HMAC key
+   * @return the number of bytes written to {@code dst}
+   * @throws CryptorException
+   *           if an error occurred
+   * @since 1.3.0
+   */
+  public int encrypt(ByteBuffer src, ByteBuffer dst, PasswordKey encryptionKey,
+      PasswordKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    return encrypt(src, dst, encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt());
+  }
+
+  private int encrypt(ByteBuffer src, ByteBuffer dst, SecretKey encryptionKey,
+      SecretKey hmacKey, byte[] encryptionSalt, byte[] hmacSalt)
+      throws CryptorException {
+    Validate.notNull(src, "Source buffer cannot be null.");
+    Validate.notNull(dst, "Destination buffer cannot be null.");
+
+    int outputSize = getEncryptedSize(src.remaining(), encryptionSalt != null);
+    Validate.isTrue(dst.remaining() >= outputSize,
+        "Destination buffer needs %d bytes but has %d bytes remaining.",
+        outputSize, dst.remaining());
+
+    byte[] iv = getSecureRandomData(AES_BLOCK_SIZE);
+
+    Cipher cipher = null;
+    Mac mac = null;
+    try {
+      cipher = Primitives.borrowAesCipher();
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+
+      ByteBuffer out = dst.duplicate();
+      encrypt(src.duplicate(), encryptionKey, iv, encryptionSalt, hmacSalt,
+          cipher, mac, out);
+
+      src.position(src.limit());
+      dst.position(out.position());
+      return outputSize;
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to generate ciphertext.", e);
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+    }
+  }
+
+  /**
+   * Encrypts the remaining bytes of {@code src} and writes the version 3
+   * output to {@code dst}, which must have enough space remaining.
+   * 
+   * @param src
+   *          the plaintext
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param iv
+   *          the IV
+   * @param encryptionSalt
+   *          the encryption salt, or {@code null} for key-based output
+   * @param hmacSalt
+   *          the HMAC salt, or {@code null} for key-based output
+   * @param cipher
+   *          the cipher to encrypt with, which will be initialised by this
+   *          method
+   * @param mac
+   *          the MAC to use, already initialised with the HMAC key
+   * @param dst
+   *          the buffer to write to
+   * @throws GeneralSecurityException
+   *           if a JCE error occurs
+   */
+  static void encrypt(ByteBuffer src, SecretKey encryptionKey, byte[] iv,
+      byte[] encryptionSalt, byte[] hmacSalt, Cipher cipher, Mac mac,
+      ByteBuffer dst) throws GeneralSecurityException {
+
+    int start = dst.position();
+    putHeader(dst, encryptionSalt, hmacSalt, iv);
+
+    cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+    cipher.doFinal(src, dst);
+
+    ByteBuffer dataToHMAC = dst.duplicate();
+    dataToHMAC.flip();
+    dataToHMAC.position(start);
+    mac.update(dataToHMAC);
+    dst.put(mac.doFinal());
+  }
+
+  /**
+   * Writes the version 3 header: the version and options bytes, the salt
+   * values if present, and the IV.
+   * 
+   * @param dst
+   *          the buffer to write to
+   * @param encryptionSalt
+   *          the encryption salt, or {@code null} for key-based output
+   * @param hmacSalt
+   *          the HMAC salt, or {@code null} for key-based output
+   * @param iv
+   *          the IV
+   */
+  static void putHeader(ByteBuffer dst, byte[] encryptionSalt,
+      byte[] hmacSalt, byte[] iv) {
+    dst.put((byte) VERSION);
+    if (encryptionSalt != null) {
+      dst.put((byte) AES256Ciphertext.FLAG_PASSWORD);
+      dst.put(encryptionSalt);
+      dst.put(hmacSalt);
+    } else {
+      dst.put((byte) 0);
+    }
+    dst.put(iv);
+  }
+
+  /**
+   * Decrypts the message held in the remaining bytes of {@code src} and writes
+   * the plaintext to {@code dst}. Either buffer may be direct. The HMAC is
+   * verified before any plaintext is written. On success, the position of
+   * {@code src} is advanced to its limit and the position of {@code dst} is
+   * advanced past the plaintext. On failure, neither position is changed.
+   * 
+   * @param src
+   *          the message to decrypt. Must be in the format described at <a
+   *          href=
+   *          "https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-Spec-v3.md"
+   *          >https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor
+   *          -Spec-v3.md</a>
+   * @param dst
+   *          the buffer to write the plaintext to, which must have at least
+   *          {@link #getMaxDecryptedSize(int)} bytes remaining
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to verify the HMAC with
+   * @return the number of bytes written to {@code dst}
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if an error occurred
+   * @since 1.3.0
+   */
+  public int decrypt(ByteBuffer src, ByteBuffer dst, SecretKey decryptionKey,
+      SecretKey hmacKey) throws CryptorException, InvalidHMACException {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    CiphertextView view = parseView(src, dst);
+    return decrypt(src, dst, view, decryptionKey, hmacKey);
+  }
+
+  /**
+   * Decrypts the password-based message held in the remaining bytes of
+   * {@code src} and writes the plaintext to {@code dst}. Buffer handling is
+   * the same as for
+   * {@link #decrypt(ByteBuffer, ByteBuffer, SecretKey, SecretKey)}.
+   * 
+   * @param src
+   *          the message to decrypt
+   * @param dst
+   *          the buffer to write the plaintext to, which must have at least
+   *          {@link #getMaxDecryptedSize(int)} bytes remaining
+   * @param password
+   *          password to use for the decryption. Cannot be empty or
+   *          <code>null</code>.
+   * @return the number of bytes written to {@code dst}
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if an error occurred
+   * @since 1.3.0
+   */
+  public int decrypt(ByteBuffer src, ByteBuffer dst, char[] password)
+      throws CryptorException, InvalidHMACException {
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.isTrue(password.length > 0, "Password cannot be empty.");
+
+    CiphertextView view = parseView(src, dst);
+    if (!view.isPasswordBased()) {
+      throw new IllegalArgumentException(
+          "Ciphertext was not encrypted with a password.");
+    }
+
+    SecretKey decryptionKey = verifiedDecryptionKey(view, password);
+    if (decryptionKey == null) {
+      throw new InvalidHMACException("Incorrect HMAC value.");
+    }
+    return decrypt(src, dst, view, decryptionKey, null);
+  }
+
+  private static CiphertextView parseView(ByteBuffer src, ByteBuffer dst)
+      throws CryptorException {
+    Validate.notNull(src, "Source buffer cannot be null.");
+    Validate.notNull(dst, "Destination buffer cannot be null.");
+
+    int outputSize = getMaxDecryptedSize(src.remaining());
+    Validate.isTrue(dst.remaining() >= outputSize,
+        "Destination buffer needs %d bytes but has %d bytes remaining.",
+        outputSize, dst.remaining());
+
+    try {
+      return CiphertextView.parse(src);
+    } catch (InvalidDataException e) {
+      throw new CryptorException("Unable to parse ciphertext.", e);
+    }
+  }
+
+  /**
+   * Decrypts a parsed message into a buffer, advancing the buffer positions
+   * on success. The HMAC is verified first unless {@code hmacKey} is
+   * {@code null}, which means the caller has already verified it.
+   */
+  private static int decrypt(ByteBuffer src, ByteBuffer dst,
+      CiphertextView view, SecretKey decryptionKey, SecretKey hmacKey)
+      throws CryptorException {
+    Mac mac = null;
+    Cipher cipher = null;
+    try {
+      if (hmacKey != null) {
+        mac = Primitives.borrowHmac();
+        mac.init(hmacKey);
+        verifyHmac(view, mac);
+      }
+      cipher = Primitives.borrowAesCipher();
+
+      ByteBuffer out = dst.duplicate();
+      int length = decryptVerified(view, decryptionKey, cipher, out);
+
+      src.position(src.limit());
+      dst.position(out.position());
+      return length;
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to decrypt message.", e);
+    } finally {
+      Primitives.releaseHmac(mac);
+      Primitives.releaseAesCipher(cipher);
+    }
+  }
+
+  /**
+   * Verifies the HMAC of a message and decrypts it into a buffer.
+   * 
+   * @param view
+   *          the message
+   * @param decryptionKey
+   *          the key to decrypt
+   * @param cipher
+   *          the cipher to decrypt with, which will be initialised by this
+   *          method
+   * @param mac
+   *          the MAC to verify with, already initialised with the HMAC key
+   * @param dst
+   *          the buffer to write the plaintext to
+   * @return the number of bytes written
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws GeneralSecurityException
+   *           if a JCE error occurs
+   */
+  static int decrypt(CiphertextView view, SecretKey decryptionKey,
+      Cipher cipher, Mac mac, ByteBuffer dst) throws InvalidHMACException,
+      GeneralSecurityException {
+
+    verifyHmac(view, mac);
+    return decryptVerified(view, decryptionKey, cipher, dst);
+  }
+
+  private static int decryptVerified(CiphertextView view,
+      SecretKey decryptionKey, Cipher cipher, ByteBuffer dst)
+      throws GeneralSecurityException {
+    cipher.init(Cipher.DECRYPT_MODE, decryptionKey, new IvParameterSpec(
+        view.getIv()));
+
+    return cipher.doFinal(view.getCiphertext(), dst);
+  }
 }
@@ -0,0 +1,240 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Decrypts a flow of RNCryptor-format buffers into plaintext. Both the v2 and
+ * v3 data formats are accepted, as by {@link AES256JNCryptorReadableChannel}.
+ * <p>
+ * Each buffer is decrypted as it arrives, on the thread that delivers it,
+ * into one plaintext buffer (or none, if it holds too little data). The last
+ * 32 bytes received are held back as the candidate HMAC. When upstream
+ * completes, the HMAC is verified before the final block is decrypted, and the
+ * subscriber receives a {@link StreamIntegrityException} if it does not match.
+ * As with the channel, plaintext is sent before the HMAC has been verified,
+ * so it must not be trusted until the flow completes successfully.
+ * <p>
+ * Ciphertext is requested from upstream one buffer at a time, and only while
+ * the subscriber has outstanding demand. When keys are derived from a
+ * password, the derivation runs on the thread that delivers the header.
+ * <p>
+ * A processor decrypts a single stream and accepts a single subscriber.
+ * Plaintext buffers are newly allocated and belong to the subscriber.
+ *
+ * @since 1.3.0
+ */
+public class AES256JNCryptorDecryptingProcessor extends CipherProcessor {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private static final int OPTIONS_OFFSET = 1;
+
+  private final DecryptionKeys keys;
+  private final ByteBuffer header = ByteBuffer.allocate(AES256v2HeaderData
+      .getSizeWithPassword());
+  private final byte[] trailer = new byte[AES256Ciphertext.HMAC_SIZE];
+  private int trailerLength;
+
+  private Cipher cipher;
+  private Mac mac;
+
+  /**
+   * Creates a processor for password-encrypted data, deriving keys with the
+   * settings of a cryptor.
+   *
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   */
+  public AES256JNCryptorDecryptingProcessor(char[] password,
+      AES256JNCryptor cryptor) {
+    this(DecryptionKeys.forPassword(password, cryptor));
+  }
+
+  /**
+   * Creates a processor for password-encrypted data using keys that have
+   * already been derived. The salt values in the data must match those of the
+   * keys.
+   *
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorDecryptingProcessor(PasswordKey decryptionKey,
+      PasswordKey hmacKey) {
+    this(DecryptionKeys.forPasswordKeys(decryptionKey, hmacKey));
+  }
+
+  /**
+   * Creates a processor for key-encrypted data.
+   *
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorDecryptingProcessor(SecretKey decryptionKey,
+      SecretKey hmacKey) {
+    this(DecryptionKeys.forKeys(decryptionKey, hmacKey));
+  }
+
+  private AES256JNCryptorDecryptingProcessor(DecryptionKeys keys) {
+    this.keys = keys;
+  }
+
+  @Override
+  ByteBuffer transform(ByteBuffer input) throws IOException {
+    if (cipher == null && !readHeader(input)) {
+      return EMPTY;
+    }
+
+    // Everything except the last 32 bytes seen so far is ciphertext
+    int count = trailerLength + input.remaining()
+        - AES256Ciphertext.HMAC_SIZE;
+    if (count <= 0) {
+      int length = input.remaining();
+      input.get(trailer, trailerLength, length);
+      trailerLength += length;
+      return EMPTY;
+    }
+
+    ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(count));
+    int fromTrailer = Math.min(count, trailerLength);
+    decrypt(ByteBuffer.wrap(trailer, 0, fromTrailer), output);
+    ByteBuffer ciphertext = input.duplicate();
+    ciphertext.limit(ciphertext.position() + count - fromTrailer);
+    decrypt(ciphertext, output);
+    input.position(ciphertext.position());
+
+    // What is left of the trailer and the input make up the new trailer
+    System.arraycopy(trailer, fromTrailer, trailer, 0, trailerLength
+        - fromTrailer);
+    trailerLength -= fromTrailer;
+    int length = input.remaining();
+    input.get(trailer, trailerLength, length);
+    trailerLength += length;
+
+    output.flip();
+    return output;
+  }
+
+  /**
+   * Collects the header from the input, then derives keys if necessary and
+   * creates the cipher and MAC.
+   *
+   * @return <code>true</code> if the header has been read
+   */
+  private boolean readHeader(ByteBuffer input) throws IOException {
+    while (true) {
+      // The options byte tells us the header size
+      int headerSize = OPTIONS_OFFSET + 1;
+      if (header.position() > OPTIONS_OFFSET) {
+        headerSize = header.get(OPTIONS_OFFSET) != 0 ? AES256v2HeaderData
+            .getSizeWithPassword() : AES256v2HeaderData
+            .getSizeWithoutPassword();
+      }
+      if (header.position() == headerSize) {
+        break;
+      }
+      if (!input.hasRemaining()) {
+        return false;
+      }
+
+      ByteBuffer part = input.duplicate();
+      part.limit(part.position()
+          + Math.min(headerSize - header.position(), part.remaining()));
+      header.put(part);
+      input.position(part.position());
+    }
+
+    byte[] headerData = Arrays.copyOf(header.array(), header.position());
+    AES256v2HeaderData parsed;
+    try {
+      parsed = new AES256v2HeaderData(headerData);
+    } catch (InvalidDataException e) {
+      throw new IOException("Unable to parse header.", e);
+    }
+
+    SecretKey[] headerKeys = keys.keysFor(parsed);
+
+    try {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.DECRYPT_MODE, headerKeys[0], new IvParameterSpec(
+          parsed.getIv()));
+
+      mac = Primitives.borrowHmac();
+      mac.init(headerKeys[1]);
+      mac.update(headerData);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to initiate cipher.", e);
+    }
+    return true;
+  }
+
+  private void decrypt(ByteBuffer ciphertext, ByteBuffer output)
+      throws IOException {
+    mac.update(ciphertext.duplicate());
+    try {
+      cipher.update(ciphertext, output);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    }
+  }
+
+  /**
+   * Verifies the HMAC held back at the end of the data, then decrypts the
+   * final block.
+   */
+  @Override
+  ByteBuffer finish() throws IOException {
+    if (cipher == null) {
+      throw new EOFException("Flow ended before the header was read.");
+    }
+    if (trailerLength != AES256Ciphertext.HMAC_SIZE
+        || !AES256JNCryptor.arraysEqual(trailer, mac.doFinal())) {
+      throw new StreamIntegrityException("MAC validation failed.");
+    }
+
+    ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(0));
+    try {
+      cipher.doFinal(EMPTY, output);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    }
+    output.flip();
+    return output;
+  }
+
+  @Override
+  void release() {
+    Primitives.releaseAesCipher(cipher);
+    Primitives.releaseHmac(mac);
+    cipher = null;
+    mac = null;
+  }
+}
@@ -0,0 +1,175 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts a flow of plaintext buffers into RNCryptor-format (version 3)
+ * data. The output is the same as that of
+ * {@link AES256JNCryptorOutputStream}.
+ * <p>
+ * Each plaintext buffer is encrypted as it arrives, on the thread that
+ * delivers it, into one ciphertext buffer (or none, if the plaintext fits in
+ * the block the cipher holds back). The header is sent with the first
+ * ciphertext, and the final block and HMAC are sent when upstream completes.
+ * Plaintext is requested from upstream one buffer at a time, and only while
+ * the subscriber has outstanding demand, so no thread blocks and at most one
+ * buffer of ciphertext is held.
+ * <p>
+ * A processor encrypts a single stream and accepts a single subscriber.
+ * Ciphertext buffers are newly allocated and belong to the subscriber.
+ *
+ * @since 1.3.0
+ */
+public class AES256JNCryptorEncryptingProcessor extends CipherProcessor {
+
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  private Cipher cipher;
+  private Mac mac;
+  private ByteBuffer header;
+
+  /**
+   * Creates a processor for key-encrypted data.
+   *
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorEncryptingProcessor(SecretKey encryptionKey,
+      SecretKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    initialize(encryptionKey, hmacKey, null, null);
+  }
+
+  /**
+   * Creates a processor for password-encrypted data using keys that have
+   * already been derived.
+   *
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorEncryptingProcessor(PasswordKey encryptionKey,
+      PasswordKey hmacKey) throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    initialize(encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt());
+  }
+
+  /**
+   * Creates the cipher and MAC and stages the header, which is sent with the
+   * first ciphertext.
+   */
+  private void initialize(SecretKey encryptionKey, SecretKey hmacKey,
+      byte[] encryptionSalt, byte[] hmacSalt) throws CryptorException {
+    byte[] iv = AES256JNCryptor
+        .getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
+
+    try {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+    } catch (GeneralSecurityException e) {
+      release();
+      throw new CryptorException("Failed to initialize cipher and HMAC.", e);
+    }
+
+    header = ByteBuffer.allocate(encryptionSalt == null ? AES256v2HeaderData
+        .getSizeWithoutPassword() : AES256v2HeaderData.getSizeWithPassword());
+    AES256JNCryptor.putHeader(header, encryptionSalt, hmacSalt, iv);
+    header.flip();
+  }
+
+  @Override
+  ByteBuffer transform(ByteBuffer input) throws IOException {
+    ByteBuffer output = allocateOutput(cipher
+        .getOutputSize(input.remaining()));
+    try {
+      cipher.update(input, output);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to encrypt data.", e);
+    }
+    macOutput(output);
+    output.flip();
+    return output;
+  }
+
+  @Override
+  ByteBuffer finish() throws IOException {
+    ByteBuffer output = allocateOutput(cipher.getOutputSize(0)
+        + AES256Ciphertext.HMAC_SIZE);
+    try {
+      cipher.doFinal(EMPTY, output);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to encrypt data.", e);
+    }
+    macOutput(output);
+    output.put(mac.doFinal());
+    output.flip();
+    return output;
+  }
+
+  /**
+   * Allocates a buffer for ciphertext, starting it with the header if that
+   * has not been sent yet.
+   */
+  private ByteBuffer allocateOutput(int ciphertextSize) {
+    if (header == null) {
+      return ByteBuffer.allocate(ciphertextSize);
+    }
+    ByteBuffer output = ByteBuffer.allocate(header.remaining()
+        + ciphertextSize);
+    output.put(header);
+    header = null;
+    return output;
+  }
+
+  /**
+   * Adds the output written so far to the HMAC.
+   */
+  private void macOutput(ByteBuffer output) {
+    ByteBuffer written = output.duplicate();
+    written.flip();
+    mac.update(written);
+  }
+
+  @Override
+  void release() {
+    Primitives.releaseAesCipher(cipher);
+    Primitives.releaseHmac(mac);
+    cipher = null;
+    mac = null;
+  }
+}
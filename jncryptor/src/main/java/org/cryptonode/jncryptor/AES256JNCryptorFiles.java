@@ -0,0 +1,509 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Encrypts and decrypts whole files in the RNCryptor version 3 format. The
+ * output is identical to that of {@link AES256JNCryptorOutputStream}, and
+ * version 2 and 3 input is accepted.
+ * <p>
+ * The input and output are mapped into memory with
+ * {@link FileChannel#map(MapMode, long, long)} in windows of 64 MB, and the
+ * cipher and MAC run directly over the mapped regions, so no data is copied
+ * through stream buffers. Output files are presized from the known format
+ * overhead before any data is written.
+ * <p>
+ * Output is written to a temporary file in the same directory as the output
+ * file, which replaces the output file (atomically, where the file system
+ * supports it) only once it is complete. If encryption or decryption fails
+ * for any reason, the temporary file is deleted and the output file is left
+ * untouched. The input and output may therefore be the same file.
+ * <p>
+ * When decrypting, the HMAC of the whole file is verified before anything is
+ * decrypted, and an {@link InvalidHMACException} is thrown if it does not
+ * match.
+ * <p>
+ * Java provides no way to unmap a file, so each mapped window is released
+ * only when it is garbage collected. Processing a file of several gigabytes
+ * can therefore hold several gigabytes of address space (and a mapping per
+ * window) until the collector runs. This is harmless on 64-bit JVMs but may
+ * exhaust the address space of a 32-bit JVM, for which the streams or
+ * channels are a better choice. Some operating systems, including Windows,
+ * will not replace a file while it is mapped.
+ *
+ * @since 1.3.0
+ */
+public final class AES256JNCryptorFiles {
+
+  /**
+   * The number of bytes mapped at a time. A whole number of AES blocks.
+   */
+  static final int MAPPING_WINDOW_SIZE = 64 * 1024 * 1024;
+
+  private AES256JNCryptorFiles() {
+  }
+
+  /**
+   * Encrypts a file with the supplied keys.
+   *
+   * @param in
+   *          the file to encrypt
+   * @param out
+   *          the file to write the ciphertext to, which is created or replaced
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws IOException
+   *           if a file cannot be read or written
+   * @throws CryptorException
+   *           if an error occurred during encryption
+   */
+  public static void encryptFile(Path in, Path out, SecretKey encryptionKey,
+      SecretKey hmacKey) throws IOException, CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    encryptFile(in, out, encryptionKey, hmacKey, null, null);
+  }
+
+  /**
+   * Encrypts a file with keys derived from a password. Use
+   * {@link AES256JNCryptor#getPasswordKey(char[])} to derive keys with fresh
+   * salt values.
+   *
+   * @param in
+   *          the file to encrypt
+   * @param out
+   *          the file to write the ciphertext to, which is created or replaced
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws IOException
+   *           if a file cannot be read or written
+   * @throws CryptorException
+   *           if an error occurred during encryption
+   */
+  public static void encryptFile(Path in, Path out, PasswordKey encryptionKey,
+      PasswordKey hmacKey) throws IOException, CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    encryptFile(in, out, encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt());
+  }
+
+  /**
+   * Decrypts a file that was encrypted with keys.
+   *
+   * @param in
+   *          the file to decrypt
+   * @param out
+   *          the file to write the plaintext to, which is created or replaced
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws IOException
+   *           if a file cannot be read or written
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if the file cannot be parsed or decrypted
+   */
+  public static void decryptFile(Path in, Path out, SecretKey decryptionKey,
+      SecretKey hmacKey) throws IOException, CryptorException {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    decryptFile(in, out, false, decryptionKey, hmacKey, null, null, null, null);
+  }
+
+  /**
+   * Decrypts a password-encrypted file using keys that have already been
+   * derived. The salt values in the file must match those of the keys.
+   *
+   * @param in
+   *          the file to decrypt
+   * @param out
+   *          the file to write the plaintext to, which is created or replaced
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws IOException
+   *           if a file cannot be read or written
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if the file cannot be parsed or decrypted
+   */
+  public static void decryptFile(Path in, Path out, PasswordKey decryptionKey,
+      PasswordKey hmacKey) throws IOException, CryptorException {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    decryptFile(in, out, true, decryptionKey.getKey(), hmacKey.getKey(),
+        decryptionKey.getSalt(), hmacKey.getSalt(), null, null);
+  }
+
+  /**
+   * Decrypts a password-encrypted file, deriving keys with the settings of a
+   * cryptor.
+   *
+   * @param in
+   *          the file to decrypt
+   * @param out
+   *          the file to write the plaintext to, which is created or replaced
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   * @throws IOException
+   *           if a file cannot be read or written
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if the file cannot be parsed or decrypted
+   */
+  public static void decryptFile(Path in, Path out, char[] password,
+      AES256JNCryptor cryptor) throws IOException, CryptorException {
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.isTrue(password.length > 0, "Password cannot be empty.");
+    Validate.notNull(cryptor, "Cryptor cannot be null.");
+
+    decryptFile(in, out, true, null, null, null, null, password, cryptor);
+  }
+
+  private static void encryptFile(Path in, Path out, SecretKey encryptionKey,
+      SecretKey hmacKey, byte[] encryptionSalt, byte[] hmacSalt)
+      throws IOException, CryptorException {
+    Validate.notNull(in, "Input file cannot be null.");
+    Validate.notNull(out, "Output file cannot be null.");
+
+    int headerSize = encryptionSalt != null ? AES256v2HeaderData
+        .getSizeWithPassword() : AES256v2HeaderData.getSizeWithoutPassword();
+    byte[] iv = AES256JNCryptor
+        .getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
+
+    Cipher cipher = null;
+    Mac mac = null;
+    try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ)) {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+
+      ByteBuffer header = ByteBuffer.allocate(headerSize);
+      AES256JNCryptor.putHeader(header, encryptionSalt, hmacSalt, iv);
+      header.flip();
+
+      // The ciphertext only replaces the output file once it is complete, so
+      // the input is intact until then even if it is the same file
+      Path temp = createTempFile(out);
+      boolean complete = false;
+      try {
+        try (FileChannel dst = openTempFile(temp)) {
+          encryptWindows(src, dst, cipher, mac, header);
+        }
+        moveIntoPlace(temp, out);
+        complete = true;
+      } finally {
+        if (!complete) {
+          deleteQuietly(temp);
+        }
+      }
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to encrypt file.", e);
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+    }
+  }
+
+  /**
+   * Writes the header, the ciphertext of the whole of {@code src} and the
+   * HMAC into an empty file.
+   */
+  private static void encryptWindows(FileChannel src, FileChannel dst,
+      Cipher cipher, Mac mac, ByteBuffer header) throws IOException,
+      GeneralSecurityException {
+    long plaintextLength = src.size();
+    long outputLength = header.remaining()
+        + (plaintextLength / AES256Ciphertext.AES_BLOCK_SIZE + 1)
+        * AES256Ciphertext.AES_BLOCK_SIZE + AES256Ciphertext.HMAC_SIZE;
+    presize(dst, outputLength);
+
+    long outputPosition = header.remaining();
+    mac.update(header.duplicate());
+    writeFully(dst, header, 0);
+
+    long inputPosition = 0;
+    while (true) {
+      long remaining = plaintextLength - inputPosition;
+      boolean last = remaining <= MAPPING_WINDOW_SIZE;
+      long windowLength = last ? remaining : MAPPING_WINDOW_SIZE;
+
+      MappedByteBuffer input = src.map(MapMode.READ_ONLY, inputPosition,
+          windowLength);
+      // The last window also holds the padding and the HMAC. The cipher
+      // insists on a block of slack in the others, which lies inside the
+      // next window
+      MappedByteBuffer output = dst.map(MapMode.READ_WRITE, outputPosition,
+          last ? outputLength - outputPosition : windowLength
+              + AES256Ciphertext.AES_BLOCK_SIZE);
+
+      int count = last ? cipher.doFinal(input, output) : cipher.update(input,
+          output);
+      macWritten(mac, output, count);
+      inputPosition += windowLength;
+      outputPosition += count;
+
+      if (last) {
+        output.put(mac.doFinal());
+        return;
+      }
+    }
+  }
+
+  /**
+   * Decrypts a file. Keys are either supplied, with salt values for
+   * password-based data, or derived from {@code password} by
+   * {@code cryptor}.
+   */
+  private static void decryptFile(Path in, Path out, boolean passwordBased,
+      SecretKey decryptionKey, SecretKey hmacKey, byte[] decryptionSalt,
+      byte[] hmacSalt, char[] password, AES256JNCryptor cryptor)
+      throws IOException, CryptorException {
+    Validate.notNull(in, "Input file cannot be null.");
+    Validate.notNull(out, "Output file cannot be null.");
+
+    Cipher cipher = null;
+    Mac mac = null;
+    try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ)) {
+      int headerSize = passwordBased ? AES256v2HeaderData.getSizeWithPassword()
+          : AES256v2HeaderData.getSizeWithoutPassword();
+      long bodyLength = src.size() - headerSize - AES256Ciphertext.HMAC_SIZE;
+      if (bodyLength < AES256Ciphertext.AES_BLOCK_SIZE
+          || bodyLength % AES256Ciphertext.AES_BLOCK_SIZE != 0) {
+        throw new CryptorException(
+            "File length is not valid for the expected format.");
+      }
+
+      byte[] headerData = new byte[headerSize];
+      readFully(src, ByteBuffer.wrap(headerData), 0);
+      AES256v2HeaderData header;
+      try {
+        header = new AES256v2HeaderData(headerData);
+      } catch (InvalidDataException e) {
+        throw new CryptorException("Unable to parse header.", e);
+      }
+
+      if (header.isPasswordBased() != passwordBased) {
+        throw new CryptorException(
+            passwordBased ? "Expected password flag missing."
+                : "Expected options byte to be zero.");
+      }
+
+      if (password != null) {
+        decryptionKey = cryptor.keyForPassword(password,
+            header.getEncryptionSalt());
+        hmacKey = cryptor.keyForPassword(password, header.getHmacSalt());
+      } else if (passwordBased
+          && (!Arrays.equals(decryptionSalt, header.getEncryptionSalt())
+              || !Arrays.equals(hmacSalt, header.getHmacSalt()))) {
+        throw new CryptorException(
+            "File salt values do not match the supplied keys.");
+      }
+
+      // Authenticate everything before any plaintext is written
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+      mac.update(headerData);
+      long hmacPosition = headerSize + bodyLength;
+      for (long position = headerSize; position < hmacPosition;) {
+        long windowLength = Math.min(MAPPING_WINDOW_SIZE, hmacPosition
+            - position);
+        mac.update(src.map(MapMode.READ_ONLY, position, windowLength));
+        position += windowLength;
+      }
+
+      byte[] originalHMAC = new byte[AES256Ciphertext.HMAC_SIZE];
+      readFully(src, ByteBuffer.wrap(originalHMAC), hmacPosition);
+      if (!AES256JNCryptor.arraysEqual(originalHMAC, mac.doFinal())) {
+        throw new InvalidHMACException("Incorrect HMAC value.");
+      }
+
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.DECRYPT_MODE, decryptionKey, new IvParameterSpec(
+          header.getIv()));
+
+      // The plaintext only replaces the output file once it is complete
+      Path temp = createTempFile(out);
+      boolean complete = false;
+      try {
+        try (FileChannel dst = openTempFile(temp)) {
+          decryptWindows(src, dst, cipher, headerSize, hmacPosition);
+        }
+        moveIntoPlace(temp, out);
+        complete = true;
+      } finally {
+        if (!complete) {
+          deleteQuietly(temp);
+        }
+      }
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to decrypt file.", e);
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+    }
+  }
+
+  /**
+   * Decrypts the authenticated body of a file, between {@code position} and
+   * {@code end}, into an empty file.
+   */
+  private static void decryptWindows(FileChannel src, FileChannel dst,
+      Cipher cipher, long position, long end) throws IOException,
+      GeneralSecurityException {
+    presize(dst, end - position - AES256Ciphertext.AES_BLOCK_SIZE);
+
+    long outputPosition = 0;
+    while (true) {
+      boolean last = end - position <= MAPPING_WINDOW_SIZE;
+      long windowLength = last ? end - position : MAPPING_WINDOW_SIZE;
+
+      MappedByteBuffer input = src.map(MapMode.READ_ONLY, position,
+          windowLength);
+      // Allow for a block held back from the previous window
+      MappedByteBuffer output = dst.map(MapMode.READ_WRITE, outputPosition,
+          windowLength + AES256Ciphertext.AES_BLOCK_SIZE);
+      outputPosition += last ? cipher.doFinal(input, output) : cipher.update(
+          input, output);
+      position += windowLength;
+
+      if (last) {
+        // Drop the space left for padding
+        dst.truncate(outputPosition);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Replaces {@code out} with {@code temp}, atomically where the file system
+   * allows it.
+   */
+  private static void moveIntoPlace(Path temp, Path out) throws IOException {
+    try {
+      Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(temp, out, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      // Report the failure that caused the deletion instead
+    }
+  }
+
+  /**
+   * Creates an empty file in the same directory as {@code out}, so that it
+   * can later be moved over {@code out} atomically.
+   */
+  private static Path createTempFile(Path out) throws IOException {
+    return Files.createTempFile(out.toAbsolutePath().getParent(), out
+        .getFileName().toString(), ".tmp");
+  }
+
+  private static FileChannel openTempFile(Path temp) throws IOException {
+    return FileChannel.open(temp, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  /**
+   * Extends a newly opened file to its final length, so the file system
+   * allocates it once rather than as each window is mapped.
+   */
+  private static void presize(FileChannel channel, long length)
+      throws IOException {
+    if (length > 0) {
+      writeFully(channel, ByteBuffer.allocate(1), length - 1);
+    }
+  }
+
+  /**
+   * Adds the {@code count} bytes before the position of {@code output} to the
+   * MAC.
+   */
+  private static void macWritten(Mac mac, ByteBuffer output, int count) {
+    ByteBuffer written = output.duplicate();
+    written.flip();
+    written.position(written.limit() - count);
+    mac.update(written);
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer dst,
+      long position) throws IOException {
+    while (dst.hasRemaining()) {
+      int count = channel.read(dst, position);
+      if (count < 0) {
+        throw new EOFException("File ended unexpectedly.");
+      }
+      position += count;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer src,
+      long position) throws IOException {
+    while (src.hasRemaining()) {
+      position += channel.write(src, position);
+    }
+  }
+}
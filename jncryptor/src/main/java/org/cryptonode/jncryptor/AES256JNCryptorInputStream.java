@@ -15,38 +15,53 @@
 package org.cryptonode.jncryptor;
 
 import java.io.EOFException;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
 /**
- * Reads RNCryptor-format data in a stream fashion. This class only
- * supports the v3 data format. The entire stream must be read in order
- * to trigger the validation of the HMAC value.
+ * Reads RNCryptor-format data in a stream fashion. This class supports the
+ * v2 and v3 data formats, detected from the version byte. The entire stream
+ * must be read in order to trigger the validation of the HMAC value.
+ * <p>
+ * Ciphertext is read and decrypted in chunks of a fixed size, which can be
+ * set when the stream is created. Larger chunks reduce the per-call overhead
+ * of the cipher and MAC at the cost of memory.
  * 
  * @since 1.1.0
  */
 public class AES256JNCryptorInputStream extends InputStream {
 
   private static final int END_OF_STREAM = -1;
+  private static final int NO_BYTE = -1;
   private final boolean isPasswordEncrypted;
   private final InputStream in;
+  private final int bufferSize;
 
   private char[] password;
+  private AES256JNCryptor cryptor;
+  private byte[] decryptionSalt;
+  private byte[] hmacSalt;
   private SecretKey decryptionKey;
   private SecretKey hmacKey;
   private boolean endOfStreamHandled = false;
+  private boolean closed = false;
 
-  private PushbackInputStream pushbackInputStream;
+  private InputStream decryptedIn;
+
+  /**
+   * The last byte read from {@code decryptedIn}, held back until the following
+   * read shows whether it is the final byte, or {@code NO_BYTE}.
+   */
+  private int heldByte = NO_BYTE;
   private TrailerInputStream trailerIn;
+  private Cipher decryptCipher;
   private Mac mac;
 
   /**
@@ -58,9 +73,138 @@ public class AES256JNCryptorInputStream extends InputStream {
    *          the password
    */
   public AES256JNCryptorInputStream(InputStream in, char[] password) {
+    this(in, password, AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data, decrypting a given
+   * number of bytes at a time.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param password
+   *          the password
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, char[] password,
+      int bufferSize) {
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
     isPasswordEncrypted = true;
     this.password = password;
     this.in = in;
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data, consulting a cache
+   * before deriving keys from the password.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param password
+   *          the password
+   * @param keyCache
+   *          the cache of derived keys, or {@code null} to always derive keys
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, char[] password,
+      DerivedKeyCache keyCache) {
+    this(in, password);
+    this.cryptor = new AES256JNCryptor();
+    this.cryptor.setKeyCache(keyCache);
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data, deriving keys with
+   * the settings of a cryptor. This makes the stream use the cryptor's PBKDF
+   * iteration count, key cache and key derivation engine, so that opening
+   * many streams encrypted with one password and salt derives keys once.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, char[] password,
+      AES256JNCryptor cryptor) {
+    this(in, password, cryptor, AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data, deriving keys with
+   * the settings of a cryptor and decrypting a given number of bytes at a
+   * time.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, char[] password,
+      AES256JNCryptor cryptor, int bufferSize) {
+    this(in, password, bufferSize);
+    Validate.notNull(cryptor, "Cryptor cannot be null.");
+    this.cryptor = cryptor;
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data using keys that have
+   * already been derived, so no key derivation takes place. The salt values in
+   * the stream must match those of the keys.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, PasswordKey decryptionKey,
+      PasswordKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an input stream for password-encrypted data using keys that have
+   * already been derived, decrypting a given number of bytes at a time. The
+   * salt values in the stream must match those of the keys.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, PasswordKey decryptionKey,
+      PasswordKey hmacKey, int bufferSize) {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    isPasswordEncrypted = true;
+    this.decryptionKey = decryptionKey.getKey();
+    this.decryptionSalt = decryptionKey.getSalt();
+    this.hmacKey = hmacKey.getKey();
+    this.hmacSalt = hmacKey.getSalt();
+    this.in = in;
+    this.bufferSize = bufferSize;
   }
 
   /**
@@ -75,10 +219,33 @@ public class AES256JNCryptorInputStream extends InputStream {
    */
   public AES256JNCryptorInputStream(InputStream in, SecretKey decryptionKey,
       SecretKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an input stream for key-encrypted data, decrypting a given number
+   * of bytes at a time.
+   * 
+   * @param in
+   *          the {@code InputStream} to read
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorInputStream(InputStream in, SecretKey decryptionKey,
+      SecretKey hmacKey, int bufferSize) {
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
     isPasswordEncrypted = false;
     this.decryptionKey = decryptionKey;
     this.hmacKey = hmacKey;
     this.in = in;
+    this.bufferSize = bufferSize;
   }
 
   /**
@@ -101,81 +268,70 @@ public class AES256JNCryptorInputStream extends InputStream {
    *           if we run out of data before reading the header
    */
   private void initializeStream() throws IOException {
-    int headerDataSize;
-    if (isPasswordEncrypted) {
-      headerDataSize = AES256v3Ciphertext.HEADER_SIZE
-          + AES256v3Ciphertext.ENCRYPTION_SALT_LENGTH
-          + AES256v3Ciphertext.HMAC_SALT_LENGTH
-          + AES256v3Ciphertext.AES_BLOCK_SIZE;
-    } else {
-      headerDataSize = AES256v3Ciphertext.HEADER_SIZE
-          + AES256v3Ciphertext.AES_BLOCK_SIZE;
-    }
+    int headerDataSize = isPasswordEncrypted ? AES256v2HeaderData
+        .getSizeWithPassword() : AES256v2HeaderData.getSizeWithoutPassword();
 
     byte[] headerData = new byte[headerDataSize];
     StreamUtils.readAllBytesOrFail(in, headerData); // throws EOF if insufficient data
 
-    int offset = 0;
-    byte version = headerData[offset++];
-
-    if (version != AES256v3Ciphertext.EXPECTED_VERSION) {
-      throw new IOException(String.format("Expected version %d but found %d.",
-          AES256v3Ciphertext.EXPECTED_VERSION, version));
+    // Versions 2 and 3 share the header layout, the HMAC coverage and the
+    // key derivation, so only the header check differs
+    AES256v2HeaderData header;
+    try {
+      header = new AES256v2HeaderData(headerData);
+    } catch (InvalidDataException e) {
+      throw new IOException("Unable to parse header.", e);
     }
 
-    byte options = headerData[offset++];
-
     if (isPasswordEncrypted) {
-      if (options != AES256v3Ciphertext.FLAG_PASSWORD) {
+      if (!header.isPasswordBased()) {
         throw new IOException("Expected password flag missing.");
       }
 
-      byte[] decryptionSalt = new byte[AES256v3Ciphertext.ENCRYPTION_SALT_LENGTH];
-      System.arraycopy(headerData, offset, decryptionSalt, 0,
-          decryptionSalt.length);
-      offset += decryptionSalt.length;
-
-      byte[] hmacSalt = new byte[AES256v3Ciphertext.HMAC_SALT_LENGTH];
-      System.arraycopy(headerData, offset, hmacSalt, 0, hmacSalt.length);
-      offset += hmacSalt.length;
-
-      // Derive keys
-      JNCryptor cryptor = new AES256JNCryptor();
-      try {
-        decryptionKey = cryptor.keyForPassword(password, decryptionSalt);
-        hmacKey = cryptor.keyForPassword(password, hmacSalt);
-      } catch (CryptorException e) {
-        throw new IOException("Failed to derive keys from password.", e);
+      if (password == null) {
+        // Keys were supplied
+        if (!Arrays.equals(decryptionSalt, header.getEncryptionSalt())
+            || !Arrays.equals(hmacSalt, header.getHmacSalt())) {
+          throw new IOException(
+              "Stream salt values do not match the supplied keys.");
+        }
+      } else {
+        // Derive keys
+        AES256JNCryptor keyDeriver = cryptor != null ? cryptor
+            : new AES256JNCryptor();
+        try {
+          decryptionKey = keyDeriver.keyForPassword(password,
+              header.getEncryptionSalt());
+          hmacKey = keyDeriver.keyForPassword(password, header.getHmacSalt());
+        } catch (CryptorException e) {
+          throw new IOException("Failed to derive keys from password.", e);
+        }
       }
 
     } else {
-      if (options != 0) {
+      if (header.isPasswordBased()) {
         throw new IOException("Expected options byte to be zero.");
       }
     }
 
-    byte[] iv = new byte[AES256v3Ciphertext.AES_BLOCK_SIZE];
-    System.arraycopy(headerData, offset, iv, 0, iv.length);
+    byte[] iv = header.getIv();
 
-    trailerIn = new TrailerInputStream(in, AES256v3Ciphertext.HMAC_SIZE);
+    trailerIn = new TrailerInputStream(in, AES256Ciphertext.HMAC_SIZE);
 
     try {
-      Cipher decryptCipher = Cipher
-          .getInstance(AES256JNCryptor.AES_CIPHER_ALGORITHM);
+      decryptCipher = Primitives.borrowAesCipher();
       decryptCipher.init(Cipher.DECRYPT_MODE, decryptionKey,
           new IvParameterSpec(iv));
 
-      mac = Mac.getInstance(AES256JNCryptor.HMAC_ALGORITHM);
+      mac = Primitives.borrowHmac();
       mac.init(hmacKey);
 
       // MAC the header
       mac.update(headerData);
 
-      // The decryption stream will write the non-decrypted bytes to the mac
-      // stream
-      pushbackInputStream = new PushbackInputStream(new CipherInputStream(
-          new MacUpdateInputStream(trailerIn, mac), decryptCipher), 1);
-
+      // The decryption stage adds the ciphertext to the MAC as it reads
+      decryptedIn = new DecryptingInputStream(trailerIn, decryptCipher, mac,
+          bufferSize);
 
     } catch (GeneralSecurityException e) {
       throw new IOException("Failed to initiate cipher.", e);
@@ -184,8 +340,8 @@ public class AES256JNCryptorInputStream extends InputStream {
 
   /**
    * Reads the next byte from the input stream. If this is the last byte in the
-   * stream (determined by peeking ahead to the next byte), the value of the
-   * HMAC is verified. If the verification fails an exception is thrown.
+   * stream (determined by reading ahead one byte), the value of the HMAC is
+   * verified. If the verification fails an exception is thrown.
    * 
    * @return the next byte from the input stream, or {@code -1} if the end of
    *         the stream has been reached
@@ -196,12 +352,29 @@ public class AES256JNCryptorInputStream extends InputStream {
    */
   @Override
   public int read() throws IOException, StreamIntegrityException {
+    ensureOpen();
     if (trailerIn == null) {
       initializeStream();
     }
 
-    int result = pushbackInputStream.read();
-    return completeRead(result);
+    if (endOfStreamHandled) {
+      return END_OF_STREAM;
+    }
+
+    if (heldByte == NO_BYTE) {
+      heldByte = decryptedIn.read();
+      if (heldByte == END_OF_STREAM) {
+        handleEndOfStream();
+        return END_OF_STREAM;
+      }
+    }
+
+    int result = heldByte;
+    heldByte = decryptedIn.read();
+    if (heldByte == END_OF_STREAM) {
+      handleEndOfStream();
+    }
+    return result;
   }
 
   /**
@@ -230,8 +403,12 @@ public class AES256JNCryptorInputStream extends InputStream {
 
   /**
    * Reads a number of bytes into the byte array. If this includes the last byte
-   * in the stream (determined by peeking ahead to the next byte), the value of
-   * the HMAC is verified. If the verification fails an exception is thrown.
+   * in the stream, the value of the HMAC is verified. If the verification fails
+   * an exception is thrown.
+   * <p>
+   * The last byte of each read is held back until the next read, which shows
+   * whether it was the final byte. This lets a large read pass through to the
+   * underlying stream as a single large read.
    * 
    * @param b
    *          the buffer into which the data is read.
@@ -268,99 +445,98 @@ public class AES256JNCryptorInputStream extends InputStream {
       return 0;
     }
 
+    ensureOpen();
     if (trailerIn == null) {
       initializeStream();
     }
 
-    int result = pushbackInputStream.read(b, off, len);
-    return completeRead(result);
-  }
-
-  /**
-   * Updates the HMAC value and handles the end of stream.
-   * 
-   * @param b
-   *          the result of a read operation
-   * @return the value {@code b}
-   * @throws IOException
-   * @throws StreamIntegrityException
-   */
-  private int completeRead(int b) throws IOException, StreamIntegrityException {
-    if (b == END_OF_STREAM) {
-      handleEndOfStream();
-    } else {
-      // Have we reached the end of the stream?
-      int c = pushbackInputStream.read();
-      if (c == END_OF_STREAM) {
-        handleEndOfStream();
-      } else {
-        pushbackInputStream.unread(c);
+    if (len == 1) {
+      int result = read();
+      if (result == END_OF_STREAM) {
+        return END_OF_STREAM;
       }
+      b[off] = (byte) result;
+      return 1;
     }
 
-    return b;
-  }
-
-  /**
-   * Verifies the HMAC value and throws an exception if it fails.
-   * 
-   * @throws IOException
-   *           if the HMAC value is incorrect
-   */
-  private void handleEndOfStream() throws StreamIntegrityException {
     if (endOfStreamHandled) {
-      return;
+      return END_OF_STREAM;
     }
 
-    endOfStreamHandled = true;
+    while (true) {
+      int count = 0;
+      if (heldByte != NO_BYTE) {
+        b[off] = (byte) heldByte;
+        heldByte = NO_BYTE;
+        count = 1;
+      }
 
-    byte[] originalHMAC = trailerIn.getTrailer();
-    byte[] calculateHMAC = mac.doFinal();
+      int numBytesRead = decryptedIn.read(b, off + count, len - count);
+      if (numBytesRead == END_OF_STREAM) {
+        handleEndOfStream();
+        return count > 0 ? count : END_OF_STREAM;
+      }
+      count += numBytesRead;
+
+      // Hold back the last byte in case it is the final one
+      count--;
+      heldByte = b[off + count] & 0xFF;
 
-    if (! AES256JNCryptor.arraysEqual(originalHMAC, calculateHMAC)) {
-      throw new StreamIntegrityException("MAC validation failed.");
+      if (count > 0) {
+        return count;
+      }
     }
   }
 
+  /**
+   * Records that the end of the stream has been reached. The decryption stage
+   * verifies the HMAC value when it reaches the end of the ciphertext, and
+   * throws an exception if the verification fails.
+   */
+  private void handleEndOfStream() {
+    endOfStreamHandled = true;
+  }
+
   /**
    * Closes the underlying input stream.
    */
   @Override
   public void close() throws IOException {
+    closed = true;
     try {
-      closeIfNotNull(pushbackInputStream);
+      closeIfNotNull(decryptedIn);
     } finally {
       closeIfNotNull(trailerIn);
+      releasePrimitives();
     }
   }
 
-  private static void closeIfNotNull(InputStream in) throws IOException {
-    if (in != null) {
-      in.close();
-    }
+  /**
+   * Returns the cipher and MAC to the pool. They must not be used afterwards.
+   */
+  private void releasePrimitives() {
+    Primitives.releaseAesCipher(decryptCipher);
+    Primitives.releaseHmac(mac);
+    decryptCipher = null;
+    mac = null;
   }
 
-  private static class MacUpdateInputStream extends FilterInputStream
-  {
-    Mac mac;
-    private MacUpdateInputStream(InputStream in, Mac mac) {
-      super(in);
-      this.mac = mac;
-    }
-
-    public int read() throws IOException {
-      int b = super.read();
-      if (b >= 0)
-        mac.update((byte)b);
-      return b;
+  /**
+   * Prevents reads after the stream is closed, when the cipher and MAC may
+   * already be in use elsewhere.
+   * 
+   * @throws IOException
+   *           if the stream is closed
+   */
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed.");
     }
+  }
 
-    public int read(byte[] b, int off, int len) throws IOException {
-      int n = super.read(b, off, len);
-      if (n > 0)
-        mac.update(b, off, n);
-      return n;
+  private static void closeIfNotNull(InputStream in) throws IOException {
+    if (in != null) {
+      in.close();
     }
   }
-
-}
\ No newline at end of file
+}
@@ -14,13 +14,11 @@
  */
 package org.cryptonode.jncryptor;
 
-import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
@@ -28,14 +26,18 @@ import javax.crypto.spec.IvParameterSpec;
 /**
  * Writes RNCryptor-format (version 3) data in a stream fashion. The stream must
  * be closed to finish writing the data and output the HMAC value.
+ * <p>
+ * Plaintext is encrypted in chunks of a fixed size, which can be set when the
+ * stream is created.
  * 
  * @since 1.1.0
  */
 public class AES256JNCryptorOutputStream extends OutputStream {
 
-  private CipherOutputStream cipherStream;
-  private MacOutputStream macOutputStream;
-  private boolean writtenHeader;
+  private EncryptingOutputStream cipherStream;
+  private Cipher cipher;
+  private Mac mac;
+  private boolean closed;
   private final boolean passwordBased;
   private byte[] encryptionSalt;
   private byte[] iv;
@@ -53,16 +55,37 @@ public class AES256JNCryptorOutputStream extends OutputStream {
    */
   public AES256JNCryptorOutputStream(OutputStream out, SecretKey encryptionKey,
       SecretKey hmacKey) throws CryptorException {
+    this(out, encryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an output stream for key-encrypted data, encrypting a given number
+   * of bytes at a time.
+   *
+   * @param out
+   *          the {@code OutputStream} to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorOutputStream(OutputStream out, SecretKey encryptionKey,
+      SecretKey hmacKey, int bufferSize) throws CryptorException {
 
     Validate.notNull(out, "Output stream cannot be null.");
     Validate.notNull(encryptionKey, "Encryption key cannot be null.");
     Validate.notNull(hmacKey, "HMAC key cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
 
     byte[] iv = AES256JNCryptor
         .getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
 
     passwordBased = false;
-    createStreams(encryptionKey, hmacKey, iv, out);
+    createStreams(encryptionKey, hmacKey, iv, out, bufferSize);
   }
 
   /**
@@ -78,11 +101,32 @@ public class AES256JNCryptorOutputStream extends OutputStream {
    */
   public AES256JNCryptorOutputStream(OutputStream out, char[] password,
       int iterations) throws CryptorException {
+    this(out, password, iterations, AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an output stream for password-encrypted data, using a specific
+   * number of PBKDF iterations and encrypting a given number of bytes at a
+   * time.
+   *
+   * @param out
+   *          the {@code OutputStream} to write the JNCryptor data to
+   * @param password
+   *          the password
+   * @param iterations
+   *          the number of PBKDF iterations to perform
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorOutputStream(OutputStream out, char[] password,
+      int iterations, int bufferSize) throws CryptorException {
 
     Validate.notNull(out, "Output stream cannot be null.");
     Validate.notNull(password, "Password cannot be null.");
     Validate.isTrue(password.length > 0, "Password cannot be empty.");
     Validate.isTrue(iterations > 0, "Iterations must be greater than zero.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
 
     AES256JNCryptor cryptor = new AES256JNCryptor(iterations);
 
@@ -96,7 +140,7 @@ public class AES256JNCryptorOutputStream extends OutputStream {
     iv = AES256JNCryptor.getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
 
     passwordBased = true;
-    createStreams(encryptionKey, hmacKey, iv, out);
+    createStreams(encryptionKey, hmacKey, iv, out, bufferSize);
   }
 
   /**
@@ -112,6 +156,60 @@ public class AES256JNCryptorOutputStream extends OutputStream {
     this(out, password, AES256JNCryptor.PBKDF_DEFAULT_ITERATIONS);
   }
 
+  /**
+   * Creates an output stream for password-encrypted data using keys that have
+   * already been derived, for example with
+   * {@link JNCryptor#getPasswordKey(char[])}. No key derivation takes place,
+   * so many streams can be written with one pair of keys for the cost of a
+   * single derivation. Each stream uses a fresh IV.
+   *
+   * @param out
+   *          the {@code OutputStream} to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @since 1.3.0
+   */
+  public AES256JNCryptorOutputStream(OutputStream out,
+      PasswordKey encryptionKey, PasswordKey hmacKey) throws CryptorException {
+    this(out, encryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates an output stream for password-encrypted data using keys that have
+   * already been derived, encrypting a given number of bytes at a time.
+   *
+   * @param out
+   *          the {@code OutputStream} to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
+   * @since 1.3.0
+   */
+  public AES256JNCryptorOutputStream(OutputStream out,
+      PasswordKey encryptionKey, PasswordKey hmacKey, int bufferSize)
+      throws CryptorException {
+
+    Validate.notNull(out, "Output stream cannot be null.");
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    encryptionSalt = encryptionKey.getSalt();
+    hmacSalt = hmacKey.getSalt();
+    byte[] iv = AES256JNCryptor
+        .getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
+
+    passwordBased = true;
+    createStreams(encryptionKey.getKey(), hmacKey.getKey(), iv, out,
+        bufferSize);
+  }
+
   /**
    * Creates the cipher and MAC streams required,
    * 
@@ -123,51 +221,61 @@ public class AES256JNCryptorOutputStream extends OutputStream {
    *          the IV
    * @param out
    *          the output stream we are wrapping
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
    * @throws CryptorException
    */
   private void createStreams(SecretKey encryptionKey, SecretKey hmacKey,
-      byte[] iv, OutputStream out) throws CryptorException {
+      byte[] iv, OutputStream out, int bufferSize) throws CryptorException {
 
     this.iv = iv;
 
     try {
-      Cipher cipher = Cipher.getInstance(AES256JNCryptor.AES_CIPHER_ALGORITHM);
+      cipher = Primitives.borrowAesCipher();
       cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
 
       try {
-        Mac mac = Mac.getInstance(AES256JNCryptor.HMAC_ALGORITHM);
+        mac = Primitives.borrowHmac();
         mac.init(hmacKey);
 
-        macOutputStream = new MacOutputStream(out, mac);
-        cipherStream = new CipherOutputStream(macOutputStream, cipher);
+        cipherStream = new EncryptingOutputStream(out, cipher, mac, bufferSize);
+        writeHeader();
 
       } catch (GeneralSecurityException e) {
+        releasePrimitives();
         throw new CryptorException("Failed to initialize HMac", e);
       }
 
     } catch (GeneralSecurityException e) {
+      releasePrimitives();
       throw new CryptorException("Failed to initialize AES cipher", e);
     }
   }
 
   /**
-   * Writes the header data to the output stream.
-   * 
-   * @throws IOException
+   * Passes the header data to the encryption stage, which writes it together
+   * with the first ciphertext.
    */
-  private void writeHeader() throws IOException {
+  private void writeHeader() {
     /* Write out the header */
+    byte[] header;
     if (passwordBased) {
-      macOutputStream.write(AES256JNCryptor.VERSION);
-      macOutputStream.write(AES256Ciphertext.FLAG_PASSWORD);
-      macOutputStream.write(encryptionSalt);
-      macOutputStream.write(hmacSalt);
-      macOutputStream.write(iv);
+      header = new byte[AES256Ciphertext.HEADER_SIZE
+          + AES256Ciphertext.ENCRYPTION_SALT_LENGTH
+          + AES256Ciphertext.HMAC_SALT_LENGTH + AES256Ciphertext.AES_BLOCK_SIZE];
+      header[0] = AES256JNCryptor.VERSION;
+      header[1] = AES256Ciphertext.FLAG_PASSWORD;
+      System.arraycopy(encryptionSalt, 0, header, 2, encryptionSalt.length);
+      System.arraycopy(hmacSalt, 0, header, 2 + encryptionSalt.length,
+          hmacSalt.length);
     } else {
-      macOutputStream.write(AES256JNCryptor.VERSION);
-      macOutputStream.write(0);
-      macOutputStream.write(iv);
+      header = new byte[AES256Ciphertext.HEADER_SIZE
+          + AES256Ciphertext.AES_BLOCK_SIZE];
+      header[0] = AES256JNCryptor.VERSION;
+      header[1] = 0;
     }
+    System.arraycopy(iv, 0, header, header.length - iv.length, iv.length);
+    cipherStream.writeHeader(header);
   }
 
   /**
@@ -180,10 +288,7 @@ public class AES256JNCryptorOutputStream extends OutputStream {
    */
   @Override
   public void write(int b) throws IOException {
-    if (!writtenHeader) {
-      writeHeader();
-      writtenHeader = true;
-    }
+    ensureOpen();
     cipherStream.write(b);
   }
 
@@ -201,56 +306,65 @@ public class AES256JNCryptorOutputStream extends OutputStream {
    */
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
-    if (!writtenHeader) {
-      writeHeader();
-      writtenHeader = true;
-    }
+    ensureOpen();
     cipherStream.write(b, off, len);
   }
 
   /**
-   * Closes the stream. This causes the HMAC calculation to be concluded and
-   * written to the output.
+   * Flushes the stream. All complete blocks of plaintext written so far are
+   * encrypted and written to the underlying stream, which is then flushed.
+   * Up to 15 bytes of a trailing partial block are held until more data is
+   * written or the stream is closed.
    * 
    * @throws IOException
    *           if an I/O error occurs
    */
   @Override
-  public void close() throws IOException {
-    cipherStream.close();
+  public void flush() throws IOException {
+    ensureOpen();
+    cipherStream.flush();
   }
 
   /**
-   * An output stream to update a Mac object with all bytes passed through, then
-   * write the Mac data to the stream upon close to complete the RNCryptor file
-   * format.
+   * Closes the stream. This causes the HMAC calculation to be concluded and
+   * written to the output. The header is written even if no data was.
+   * 
+   * @throws IOException
+   *           if an I/O error occurs
    */
-  private static class MacOutputStream extends FilterOutputStream {
-    private final Mac mac;
-
-    MacOutputStream(OutputStream out, Mac mac) {
-      super(out);
-      this.mac = mac;
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
     }
-
-    @Override
-    public void write(int b) throws IOException {
-      mac.update((byte) b);
-      out.write(b);
+    closed = true;
+    try {
+      cipherStream.close();
+    } finally {
+      releasePrimitives();
     }
+  }
 
-    @Override
-    public void write(byte[] b, int off, int len) throws IOException {
-      mac.update(b, off, len);
-      out.write(b, off, len);
+  /**
+   * Prevents writes after the stream is closed, when the cipher and MAC may
+   * already be in use elsewhere.
+   * 
+   * @throws IOException
+   *           if the stream is closed
+   */
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed.");
     }
+  }
 
-    @Override
-    public void close() throws IOException {
-      byte[] macData = mac.doFinal();
-      out.write(macData);
-      out.flush();
-      out.close();
-    }
+  /**
+   * Returns the cipher and MAC to the pool. They must not be used afterwards.
+   */
+  private void releasePrimitives() {
+    Primitives.releaseAesCipher(cipher);
+    Primitives.releaseHmac(mac);
+    cipher = null;
+    mac = null;
   }
 }
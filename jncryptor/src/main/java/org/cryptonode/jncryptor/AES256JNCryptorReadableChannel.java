@@ -0,0 +1,380 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Reads RNCryptor-format data from a channel and returns the plaintext. Both
+ * the v2 and v3 data formats are accepted, as by
+ * {@link AES256JNCryptorInputStream}.
+ * <p>
+ * Ciphertext is read into a direct buffer and decrypted into a second direct
+ * buffer, from which plaintext is copied to the caller. The last 32 bytes
+ * read are held back as the candidate HMAC. When the underlying channel
+ * reaches end-of-stream the HMAC is verified before the final block is
+ * decrypted, and a {@link StreamIntegrityException} is thrown if it does not
+ * match. As with the stream, the entire channel must be read for the HMAC to
+ * be verified.
+ * <p>
+ * The underlying channel may be in non-blocking mode, in which case
+ * {@link #read(ByteBuffer)} returns zero when no data is available.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @since 1.3.0
+ */
+public class AES256JNCryptorReadableChannel implements ReadableByteChannel {
+
+  private static final int END_OF_STREAM = -1;
+
+  private final ReadableByteChannel in;
+  private final DecryptionKeys keys;
+  private final ByteBuffer input;
+  private final ByteBuffer plaintext;
+
+  private Cipher cipher;
+  private Mac mac;
+  private boolean headerRead;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * Creates a channel for password-encrypted data, deriving keys with the
+   * settings of a cryptor.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      char[] password, AES256JNCryptor cryptor, int bufferSize) {
+    this(in, DecryptionKeys.forPassword(password, cryptor), bufferSize);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data, deriving keys with the
+   * settings of a cryptor and decrypting 64 KB at a time.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      char[] password, AES256JNCryptor cryptor) {
+    this(in, password, cryptor, AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived. The salt values in the data must match those of the
+   * keys.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      PasswordKey decryptionKey, PasswordKey hmacKey, int bufferSize) {
+    this(in, DecryptionKeys.forPasswordKeys(decryptionKey, hmacKey),
+        bufferSize);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived, decrypting 64 KB at a time. The salt values in the
+   * data must match those of the keys.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      PasswordKey decryptionKey, PasswordKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a channel for key-encrypted data.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to decrypt at a time
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      SecretKey decryptionKey, SecretKey hmacKey, int bufferSize) {
+    this(in, DecryptionKeys.forKeys(decryptionKey, hmacKey), bufferSize);
+  }
+
+  /**
+   * Creates a channel for key-encrypted data, decrypting 64 KB at a time.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      SecretKey decryptionKey, SecretKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  private AES256JNCryptorReadableChannel(ReadableByteChannel in,
+      DecryptionKeys keys, int bufferSize) {
+    Validate.notNull(in, "Channel cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    this.in = in;
+    this.keys = keys;
+
+    // The input buffer must hold the whole header, and always has room for
+    // the held-back HMAC plus at least one more byte
+    int inputSize = Math.max(bufferSize,
+        AES256v2HeaderData.getSizeWithPassword())
+        + AES256Ciphertext.HMAC_SIZE;
+    input = ByteBuffer.allocateDirect(inputSize);
+    plaintext = ByteBuffer.allocateDirect(inputSize
+        + AES256Ciphertext.AES_BLOCK_SIZE);
+    plaintext.flip();
+  }
+
+  /**
+   * Reads plaintext into a buffer. If the end of the underlying channel is
+   * reached, the HMAC is verified before the final plaintext is returned.
+   *
+   * @param dst
+   *          the buffer to read plaintext into
+   * @return the number of bytes read, which may be zero if the underlying
+   *         channel is non-blocking, or {@code -1} at the end of the data
+   * @throws StreamIntegrityException
+   *           if the end of the data has been reached and the HMAC fails
+   *           validation
+   * @throws EOFException
+   *           if the channel ends before the header has been read
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    while (!plaintext.hasRemaining()) {
+      if (finished) {
+        return END_OF_STREAM;
+      }
+
+      int numBytesRead = in.read(input);
+      if (numBytesRead == 0) {
+        return 0;
+      }
+
+      if (!headerRead) {
+        if (numBytesRead == END_OF_STREAM) {
+          throw new EOFException("Channel ended before the header was read.");
+        }
+        if (!readHeader()) {
+          continue;
+        }
+      }
+
+      if (numBytesRead == END_OF_STREAM) {
+        decryptFinal();
+      } else {
+        decryptAvailable();
+      }
+    }
+
+    int count = Math.min(dst.remaining(), plaintext.remaining());
+    ByteBuffer chunk = plaintext.duplicate();
+    chunk.limit(chunk.position() + count);
+    dst.put(chunk);
+    plaintext.position(chunk.position());
+    return count;
+  }
+
+  /**
+   * Parses the header once enough bytes have been read, derives keys if
+   * necessary and creates the cipher and MAC.
+   *
+   * @return <code>true</code> if the header has been read
+   */
+  private boolean readHeader() throws IOException {
+    // The options byte tells us the header size
+    if (input.position() < 2) {
+      return false;
+    }
+    boolean passwordFlag = input.get(1) != 0;
+    int headerSize = passwordFlag ? AES256v2HeaderData.getSizeWithPassword()
+        : AES256v2HeaderData.getSizeWithoutPassword();
+    if (input.position() < headerSize) {
+      return false;
+    }
+
+    byte[] headerData = new byte[headerSize];
+    input.flip();
+    input.get(headerData);
+    input.compact();
+
+    AES256v2HeaderData header;
+    try {
+      header = new AES256v2HeaderData(headerData);
+    } catch (InvalidDataException e) {
+      throw new IOException("Unable to parse header.", e);
+    }
+
+    SecretKey[] headerKeys = keys.keysFor(header);
+
+    try {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.DECRYPT_MODE, headerKeys[0], new IvParameterSpec(
+          header.getIv()));
+
+      mac = Primitives.borrowHmac();
+      mac.init(headerKeys[1]);
+      mac.update(headerData);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to initiate cipher.", e);
+    }
+
+    headerRead = true;
+    return true;
+  }
+
+  /**
+   * Decrypts everything read so far except the bytes that may be the HMAC.
+   */
+  private void decryptAvailable() throws IOException {
+    int count = input.position() - AES256Ciphertext.HMAC_SIZE;
+    if (count <= 0) {
+      return;
+    }
+
+    input.flip();
+    ByteBuffer ciphertext = input.duplicate();
+    ciphertext.limit(count);
+    mac.update(ciphertext);
+
+    ciphertext.position(0);
+    plaintext.clear();
+    try {
+      cipher.update(ciphertext, plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    } finally {
+      plaintext.flip();
+    }
+
+    input.position(count);
+    input.compact();
+  }
+
+  /**
+   * Verifies the HMAC held back at the end of the data, then decrypts the
+   * final block.
+   */
+  private void decryptFinal() throws IOException {
+    finished = true;
+
+    if (input.position() != AES256Ciphertext.HMAC_SIZE) {
+      throw new StreamIntegrityException("MAC validation failed.");
+    }
+
+    byte[] originalHMAC = new byte[AES256Ciphertext.HMAC_SIZE];
+    input.flip();
+    input.get(originalHMAC);
+    input.clear();
+
+    if (!AES256JNCryptor.arraysEqual(originalHMAC, mac.doFinal())) {
+      throw new StreamIntegrityException("MAC validation failed.");
+    }
+
+    plaintext.clear();
+    try {
+      cipher.doFinal(ByteBuffer.allocate(0), plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    } finally {
+      plaintext.flip();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed && in.isOpen();
+  }
+
+  /**
+   * Closes the underlying channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      in.close();
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      Primitives.releaseHmac(mac);
+      cipher = null;
+      mac = null;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+}
@@ -0,0 +1,389 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Reads RNCryptor-format data from a seekable channel, such as a
+ * {@link FileChannel}, and returns plaintext only once the HMAC has been
+ * verified. Both the v2 and v3 data formats are accepted.
+ * <p>
+ * The first call to {@link #read(ByteBuffer)} makes a pass over the data that
+ * computes the HMAC only. If the channel is a {@code FileChannel}, this pass
+ * runs over memory-mapped windows of the file. If the HMAC matches, the
+ * channel seeks back to the start of the ciphertext and a second pass
+ * decrypts it; otherwise a {@link StreamIntegrityException} is thrown and no
+ * plaintext is returned. Unlike {@link AES256JNCryptorReadableChannel}, every
+ * byte returned is therefore authenticated, without holding the plaintext in
+ * memory.
+ * <p>
+ * The data is read from the position of the channel when the first read
+ * takes place to the end of the channel. The channel must be in blocking
+ * mode and must not be modified while it is being read.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @since 1.3.0
+ */
+public class AES256JNCryptorVerifiedChannel implements ReadableByteChannel {
+
+  private static final int END_OF_STREAM = -1;
+
+  private final SeekableByteChannel in;
+  private final DecryptionKeys keys;
+  private final ByteBuffer input;
+  private final ByteBuffer plaintext;
+
+  private Cipher cipher;
+  private IOException verifyFailure;
+  private long ciphertextRemaining;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * Creates a channel for password-encrypted data, deriving keys with the
+   * settings of a cryptor.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   * @param bufferSize
+   *          the number of bytes to read at a time
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      char[] password, AES256JNCryptor cryptor, int bufferSize) {
+    this(in, DecryptionKeys.forPassword(password, cryptor), bufferSize);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data, deriving keys with the
+   * settings of a cryptor and reading 64 KB at a time.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param password
+   *          the password
+   * @param cryptor
+   *          the cryptor to derive keys with
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      char[] password, AES256JNCryptor cryptor) {
+    this(in, password, cryptor, AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived. The salt values in the data must match those of the
+   * keys.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to read at a time
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      PasswordKey decryptionKey, PasswordKey hmacKey, int bufferSize) {
+    this(in, DecryptionKeys.forPasswordKeys(decryptionKey, hmacKey),
+        bufferSize);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived, reading 64 KB at a time. The salt values in the
+   * data must match those of the keys.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      PasswordKey decryptionKey, PasswordKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a channel for key-encrypted data.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to read at a time
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      SecretKey decryptionKey, SecretKey hmacKey, int bufferSize) {
+    this(in, DecryptionKeys.forKeys(decryptionKey, hmacKey), bufferSize);
+  }
+
+  /**
+   * Creates a channel for key-encrypted data, reading 64 KB at a time.
+   *
+   * @param in
+   *          the channel to read JNCryptor data from
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   */
+  public AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      SecretKey decryptionKey, SecretKey hmacKey) {
+    this(in, decryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  private AES256JNCryptorVerifiedChannel(SeekableByteChannel in,
+      DecryptionKeys keys, int bufferSize) {
+    Validate.notNull(in, "Channel cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    this.in = in;
+    this.keys = keys;
+    input = ByteBuffer.allocateDirect(bufferSize);
+    // The cipher asks for room for the buffered block as well as the input
+    plaintext = ByteBuffer.allocateDirect(bufferSize + 2
+        * AES256Ciphertext.AES_BLOCK_SIZE);
+    plaintext.flip();
+  }
+
+  /**
+   * Reads plaintext into a buffer. The first call verifies the HMAC of the
+   * whole channel before any plaintext is returned. If verification fails,
+   * every later call throws the same exception without reading the channel
+   * again.
+   *
+   * @param dst
+   *          the buffer to read plaintext into
+   * @return the number of bytes read, or {@code -1} at the end of the data
+   * @throws StreamIntegrityException
+   *           if the HMAC fails validation
+   * @throws EOFException
+   *           if the channel ends unexpectedly
+   * @throws IOException
+   *           if the data cannot be parsed or an I/O error occurs
+   */
+  @Override
+  public int read(ByteBuffer dst) throws IOException {
+    ensureOpen();
+    if (verifyFailure != null) {
+      throw verifyFailure;
+    }
+    if (cipher == null) {
+      try {
+        verify();
+      } catch (IOException e) {
+        // The channel position is lost, so verification cannot be retried
+        verifyFailure = e;
+        throw e;
+      }
+    }
+    if (!dst.hasRemaining()) {
+      return 0;
+    }
+
+    while (!plaintext.hasRemaining()) {
+      if (finished) {
+        return END_OF_STREAM;
+      }
+      decryptNext();
+    }
+
+    int count = Math.min(dst.remaining(), plaintext.remaining());
+    ByteBuffer chunk = plaintext.duplicate();
+    chunk.limit(chunk.position() + count);
+    dst.put(chunk);
+    plaintext.position(chunk.position());
+    return count;
+  }
+
+  /**
+   * Reads the header, computes the HMAC over the rest of the channel and
+   * compares it with the stored value. On success, the channel is positioned
+   * at the start of the ciphertext and the cipher is ready to decrypt it.
+   */
+  private void verify() throws IOException {
+    long start = in.position();
+    int headerSize = keys.getHeaderSize();
+    long ciphertextLength = in.size() - start - headerSize
+        - AES256Ciphertext.HMAC_SIZE;
+    if (ciphertextLength < AES256Ciphertext.AES_BLOCK_SIZE
+        || ciphertextLength % AES256Ciphertext.AES_BLOCK_SIZE != 0) {
+      throw new IOException(
+          "Channel length is not valid for the expected format.");
+    }
+
+    byte[] headerData = new byte[headerSize];
+    readFully(ByteBuffer.wrap(headerData));
+
+    AES256v2HeaderData header;
+    try {
+      header = new AES256v2HeaderData(headerData);
+    } catch (InvalidDataException e) {
+      throw new IOException("Unable to parse header.", e);
+    }
+    SecretKey[] headerKeys = keys.keysFor(header);
+
+    long ciphertextStart = start + headerSize;
+    Cipher decryptCipher = null;
+    Mac mac = null;
+    try {
+      mac = Primitives.borrowHmac();
+      mac.init(headerKeys[1]);
+      mac.update(headerData);
+      macCiphertext(mac, ciphertextStart, ciphertextLength);
+
+      byte[] originalHMAC = new byte[AES256Ciphertext.HMAC_SIZE];
+      in.position(ciphertextStart + ciphertextLength);
+      readFully(ByteBuffer.wrap(originalHMAC));
+      if (!AES256JNCryptor.arraysEqual(originalHMAC, mac.doFinal())) {
+        throw new StreamIntegrityException("MAC validation failed.");
+      }
+
+      decryptCipher = Primitives.borrowAesCipher();
+      decryptCipher.init(Cipher.DECRYPT_MODE, headerKeys[0],
+          new IvParameterSpec(header.getIv()));
+    } catch (GeneralSecurityException e) {
+      Primitives.releaseAesCipher(decryptCipher);
+      throw new IOException("Failed to initiate cipher.", e);
+    } finally {
+      Primitives.releaseHmac(mac);
+    }
+
+    in.position(ciphertextStart);
+    cipher = decryptCipher;
+    ciphertextRemaining = ciphertextLength;
+  }
+
+  /**
+   * Adds the ciphertext to the MAC, mapping it a window at a time if the
+   * channel is a file.
+   */
+  private void macCiphertext(Mac mac, long position, long length)
+      throws IOException {
+    if (in instanceof FileChannel) {
+      FileChannel file = (FileChannel) in;
+      long end = position + length;
+      while (position < end) {
+        long windowLength = Math.min(AES256JNCryptorFiles.MAPPING_WINDOW_SIZE,
+            end - position);
+        mac.update(file.map(MapMode.READ_ONLY, position, windowLength));
+        position += windowLength;
+      }
+      return;
+    }
+
+    in.position(position);
+    while (length > 0) {
+      input.clear();
+      if (input.remaining() > length) {
+        input.limit((int) length);
+      }
+      readFully(input);
+      input.flip();
+      length -= input.remaining();
+      mac.update(input);
+    }
+  }
+
+  /**
+   * Decrypts the next chunk of verified ciphertext, or the final block.
+   */
+  private void decryptNext() throws IOException {
+    plaintext.clear();
+    try {
+      if (ciphertextRemaining == 0) {
+        finished = true;
+        cipher.doFinal(ByteBuffer.allocate(0), plaintext);
+        return;
+      }
+
+      input.clear();
+      if (input.remaining() > ciphertextRemaining) {
+        input.limit((int) ciphertextRemaining);
+      }
+      readFully(input);
+      input.flip();
+      ciphertextRemaining -= input.remaining();
+      cipher.update(input, plaintext);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    } finally {
+      plaintext.flip();
+    }
+  }
+
+  private void readFully(ByteBuffer dst) throws IOException {
+    while (dst.hasRemaining()) {
+      if (in.read(dst) == END_OF_STREAM) {
+        throw new EOFException("Channel ended unexpectedly.");
+      }
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed && in.isOpen();
+  }
+
+  /**
+   * Closes the underlying channel.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      in.close();
+    } finally {
+      Primitives.releaseAesCipher(cipher);
+      cipher = null;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+}
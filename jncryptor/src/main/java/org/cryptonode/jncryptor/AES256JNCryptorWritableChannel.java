@@ -0,0 +1,331 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Writes RNCryptor-format (version 3) data to a channel. The output is the
+ * same as that of {@link AES256JNCryptorOutputStream}.
+ * <p>
+ * Plaintext is encrypted from the caller's buffer into a direct buffer of
+ * ciphertext, which is written to the underlying channel. The header is
+ * written together with the first ciphertext.
+ * <p>
+ * The underlying channel may be in non-blocking mode. In that case
+ * {@link #write(ByteBuffer)} accepts only as much plaintext as can be
+ * buffered, and may return zero. To complete the output, call
+ * {@link #finish()} until it returns <code>true</code> (for example, each time
+ * the channel is ready for writing) and then {@link #close()}. With a blocking
+ * channel, {@code close()} alone is enough.
+ * <p>
+ * Instances are not thread-safe.
+ *
+ * @since 1.3.0
+ */
+public class AES256JNCryptorWritableChannel implements WritableByteChannel {
+
+  private WritableByteChannel out;
+  private ByteBuffer output;
+  private Cipher cipher;
+  private Mac mac;
+  private boolean finished;
+  private boolean closed;
+
+  /**
+   * Creates a channel for key-encrypted data.
+   *
+   * @param out
+   *          the channel to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorWritableChannel(WritableByteChannel out,
+      SecretKey encryptionKey, SecretKey hmacKey, int bufferSize)
+      throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    initialize(out, encryptionKey, hmacKey, null, null, bufferSize);
+  }
+
+  /**
+   * Creates a channel for key-encrypted data, encrypting 64 KB at a time.
+   *
+   * @param out
+   *          the channel to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorWritableChannel(WritableByteChannel out,
+      SecretKey encryptionKey, SecretKey hmacKey) throws CryptorException {
+    this(out, encryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived.
+   *
+   * @param out
+   *          the channel to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param bufferSize
+   *          the number of bytes to encrypt at a time
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorWritableChannel(WritableByteChannel out,
+      PasswordKey encryptionKey, PasswordKey hmacKey, int bufferSize)
+      throws CryptorException {
+    Validate.notNull(encryptionKey, "Encryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+
+    initialize(out, encryptionKey.getKey(), hmacKey.getKey(),
+        encryptionKey.getSalt(), hmacKey.getSalt(), bufferSize);
+  }
+
+  /**
+   * Creates a channel for password-encrypted data using keys that have
+   * already been derived, encrypting 64 KB at a time.
+   *
+   * @param out
+   *          the channel to write the JNCryptor data to
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @throws CryptorException
+   *           if the cipher or MAC cannot be initialised
+   */
+  public AES256JNCryptorWritableChannel(WritableByteChannel out,
+      PasswordKey encryptionKey, PasswordKey hmacKey) throws CryptorException {
+    this(out, encryptionKey, hmacKey,
+        AES256JNCryptor.DEFAULT_STREAM_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates the cipher and MAC and stages the header, which is written with
+   * the first ciphertext.
+   */
+  private void initialize(WritableByteChannel out, SecretKey encryptionKey,
+      SecretKey hmacKey, byte[] encryptionSalt, byte[] hmacSalt, int bufferSize)
+      throws CryptorException {
+    Validate.notNull(out, "Channel cannot be null.");
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    this.out = out;
+
+    // Room for the header, a chunk of ciphertext plus padding, and the HMAC
+    output = ByteBuffer.allocateDirect(AES256v2HeaderData.getSizeWithPassword()
+        + bufferSize + AES256Ciphertext.AES_BLOCK_SIZE
+        + AES256Ciphertext.HMAC_SIZE);
+
+    byte[] iv = AES256JNCryptor
+        .getSecureRandomData(AES256Ciphertext.AES_BLOCK_SIZE);
+
+    try {
+      cipher = Primitives.borrowAesCipher();
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+      mac = Primitives.borrowHmac();
+      mac.init(hmacKey);
+    } catch (GeneralSecurityException e) {
+      releasePrimitives();
+      throw new CryptorException("Failed to initialize cipher and HMAC.", e);
+    }
+
+    AES256JNCryptor.putHeader(output, encryptionSalt, hmacSalt, iv);
+    macOutput(0);
+  }
+
+  /**
+   * Encrypts plaintext from a buffer and writes the ciphertext to the
+   * underlying channel. With a blocking channel, all remaining bytes of
+   * {@code src} are consumed. With a non-blocking channel, fewer bytes (or
+   * none) may be consumed when the channel cannot accept more data.
+   *
+   * @param src
+   *          the plaintext
+   * @return the number of plaintext bytes consumed
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  @Override
+  public int write(ByteBuffer src) throws IOException {
+    ensureOpen();
+    if (finished) {
+      throw new IOException("Cannot write after finish() has been called.");
+    }
+
+    int total = 0;
+    while (src.hasRemaining()) {
+      int space = output.remaining() - AES256Ciphertext.AES_BLOCK_SIZE
+          - AES256Ciphertext.HMAC_SIZE;
+      if (space <= 0) {
+        if (!drain()) {
+          break;
+        }
+        continue;
+      }
+
+      int chunk = Math.min(src.remaining(), space);
+      ByteBuffer in = src.duplicate();
+      in.limit(in.position() + chunk);
+
+      int start = output.position();
+      try {
+        cipher.update(in, output);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Failed to encrypt data.", e);
+      }
+      src.position(in.position());
+      macOutput(start);
+      total += chunk;
+    }
+
+    drain();
+    return total;
+  }
+
+  /**
+   * Writes the final block and the HMAC, then writes as much pending output
+   * as the underlying channel accepts. Further calls write any remaining
+   * output. No more plaintext can be written once this method has been
+   * called.
+   *
+   * @return <code>true</code> if all output has been written
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  public boolean finish() throws IOException {
+    ensureOpen();
+    if (!finished) {
+      // The final block and HMAC are written after everything else, so make
+      // room for them first
+      while (output.remaining() < AES256Ciphertext.AES_BLOCK_SIZE
+          + AES256Ciphertext.HMAC_SIZE) {
+        if (!drain()) {
+          return false;
+        }
+      }
+
+      int start = output.position();
+      try {
+        cipher.doFinal(ByteBuffer.allocate(0), output);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("Failed to encrypt data.", e);
+      }
+      macOutput(start);
+      output.put(mac.doFinal());
+      finished = true;
+    }
+    return drain();
+  }
+
+  /**
+   * Adds the output written since {@code start} to the HMAC.
+   */
+  private void macOutput(int start) {
+    ByteBuffer written = output.duplicate();
+    written.limit(written.position());
+    written.position(start);
+    mac.update(written);
+  }
+
+  /**
+   * Writes pending output to the underlying channel.
+   *
+   * @return <code>true</code> if no output is pending
+   */
+  private boolean drain() throws IOException {
+    output.flip();
+    try {
+      while (output.hasRemaining() && out.write(output) > 0) {
+        // Keep writing while the channel accepts data
+      }
+      return !output.hasRemaining();
+    } finally {
+      output.compact();
+    }
+  }
+
+  @Override
+  public boolean isOpen() {
+    return !closed && out.isOpen();
+  }
+
+  /**
+   * Finishes the output if necessary and closes the underlying channel.
+   * <p>
+   * If the underlying channel is non-blocking, call {@link #finish()} until it
+   * returns <code>true</code> before closing this channel. Output that the
+   * underlying channel does not accept here is lost, as the channel is closed
+   * regardless.
+   *
+   * @throws IOException
+   *           if an I/O error occurs, or if the underlying channel is
+   *           non-blocking and has not accepted all the output
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    try {
+      if (!finish()) {
+        throw new IOException("Channel did not accept all output.");
+      }
+    } finally {
+      closed = true;
+      releasePrimitives();
+      out.close();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  private void releasePrimitives() {
+    Primitives.releaseAesCipher(cipher);
+    Primitives.releaseHmac(mac);
+    cipher = null;
+    mac = null;
+  }
+}
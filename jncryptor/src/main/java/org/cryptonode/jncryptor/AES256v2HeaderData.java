@@ -14,13 +14,18 @@
  */
 package org.cryptonode.jncryptor;
 
+/**
+ * Parses the header that precedes the ciphertext in data formats version 2
+ * and 3, which share the same layout: a version byte, an options byte,
+ * optional salt values and the IV.
+ */
 class AES256v2HeaderData {
-  private static final int SIZE_WITH_PASSWORD = AES256v3Ciphertext.HEADER_SIZE
-      + AES256v3Ciphertext.ENCRYPTION_SALT_LENGTH
-      + AES256v3Ciphertext.HMAC_SALT_LENGTH + AES256v3Ciphertext.AES_BLOCK_SIZE;
+  private static final int SIZE_WITH_PASSWORD = AES256Ciphertext.HEADER_SIZE
+      + AES256Ciphertext.ENCRYPTION_SALT_LENGTH
+      + AES256Ciphertext.HMAC_SALT_LENGTH + AES256Ciphertext.AES_BLOCK_SIZE;
 
-  private static final int SIZE_WITHOUT_PASSWORD = AES256v3Ciphertext.HEADER_SIZE
-      + AES256v3Ciphertext.AES_BLOCK_SIZE;
+  private static final int SIZE_WITHOUT_PASSWORD = AES256Ciphertext.HEADER_SIZE
+      + AES256Ciphertext.AES_BLOCK_SIZE;
 
   private final byte version;
   private final byte options;
@@ -32,35 +37,37 @@ class AES256v2HeaderData {
   /**
    * Parses the header data.
    * 
+   * @param data
+   *          the data, which must start with the header
    * @throws InvalidDataException
-   * 
+   *           if the header is not valid for version 2 or 3
    */
   AES256v2HeaderData(byte[] data) throws InvalidDataException {
     Validate.notNull(data, "Data cannot be null.");
 
     // Need the header to be able to determine the length
-    if (data.length < AES256v3Ciphertext.HEADER_SIZE) {
+    if (data.length < AES256Ciphertext.HEADER_SIZE) {
       throw new InvalidDataException("Not enough data to read header.");
     }
 
     int index = 0;
     version = data[index++];
 
-    if (version != AES256v3Ciphertext.EXPECTED_VERSION) {
+    if (version != AES256Ciphertext.V2_VERSION
+        && version != AES256Ciphertext.V3_VERSION) {
       throw new InvalidDataException(String.format(
-          "Expected version %d but found %d.",
-          AES256v3Ciphertext.EXPECTED_VERSION, version));
+          "Unrecognised version number: %d.", version));
     }
 
     options = data[index++];
 
     // Test for any invalid flags
-    if (options != 0x00 && options != AES256v3Ciphertext.FLAG_PASSWORD) {
+    if (options != 0x00 && options != AES256Ciphertext.FLAG_PASSWORD) {
       throw new InvalidDataException("Unrecognised bit in the options byte.");
     }
 
     // If the password bit is set, we can expect salt values
-    isPasswordBased = ((options & AES256v3Ciphertext.FLAG_PASSWORD) == AES256v3Ciphertext.FLAG_PASSWORD);
+    isPasswordBased = ((options & AES256Ciphertext.FLAG_PASSWORD) == AES256Ciphertext.FLAG_PASSWORD);
 
     final int minimumLength = (isPasswordBased) ? SIZE_WITH_PASSWORD
         : SIZE_WITHOUT_PASSWORD;
@@ -72,11 +79,11 @@ class AES256v2HeaderData {
     }
 
     if (isPasswordBased) {
-      encryptionSalt = new byte[AES256v3Ciphertext.ENCRYPTION_SALT_LENGTH];
+      encryptionSalt = new byte[AES256Ciphertext.ENCRYPTION_SALT_LENGTH];
       System.arraycopy(data, index, encryptionSalt, 0, encryptionSalt.length);
       index += encryptionSalt.length;
 
-      hmacSalt = new byte[AES256v3Ciphertext.HMAC_SALT_LENGTH];
+      hmacSalt = new byte[AES256Ciphertext.HMAC_SALT_LENGTH];
       System.arraycopy(data, index, hmacSalt, 0, hmacSalt.length);
       index += hmacSalt.length;
     } else {
@@ -84,7 +91,7 @@ class AES256v2HeaderData {
       hmacSalt = null;
     }
 
-    iv = new byte[AES256v3Ciphertext.AES_BLOCK_SIZE];
+    iv = new byte[AES256Ciphertext.AES_BLOCK_SIZE];
     System.arraycopy(data, index, iv, 0, iv.length);
     index += iv.length;
   }
@@ -0,0 +1,469 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Runs the operations of a {@link JNCryptor} on background threads, so that
+ * callers are not blocked while keys are derived or data is processed.
+ * <p>
+ * Operations that derive keys from a password run on one pool of threads and
+ * operations that use keys the caller already holds run on another. Each pool
+ * has a fixed number of threads and a bounded queue, so a flood of
+ * password-based operations (each of which runs tens of thousands of PBKDF2
+ * iterations) cannot hold up cheap key-based ones. When a queue is full the
+ * operation is rejected with a {@link RejectedExecutionException} and counted,
+ * rather than queued without limit.
+ * <p>
+ * Every operation returns a {@link Future} and optionally reports its outcome
+ * to a {@link Callback} on the thread that ran it. Arrays passed to an
+ * operation are not copied and must not be modified (or, for passwords,
+ * cleared) until it completes.
+ * <p>
+ * This class is thread-safe. Call {@link #shutdown()} when it is no longer
+ * needed.
+ *
+ * @since 1.3.0
+ */
+public class AsyncJNCryptor {
+
+  /**
+   * Default capacity of each queue of waiting operations.
+   */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+  /**
+   * Receives the outcome of an operation.
+   *
+   * @param <T>
+   *          the result type
+   */
+  public interface Callback<T> {
+
+    /**
+     * Called when the operation succeeds.
+     *
+     * @param result
+     *          the result
+     */
+    void onSuccess(T result);
+
+    /**
+     * Called when the operation fails or is cancelled.
+     *
+     * @param cause
+     *          the reason, which is a {@link CryptorException} if the
+     *          operation itself failed, or a {@link CancellationException}
+     */
+    void onFailure(Throwable cause);
+  }
+
+  private final JNCryptor cryptor;
+  private final ThreadPoolExecutor keyDerivationPool;
+  private final ThreadPoolExecutor cipherPool;
+  private final CountingRejectionHandler keyDerivationRejections =
+      new CountingRejectionHandler();
+  private final CountingRejectionHandler cipherRejections =
+      new CountingRejectionHandler();
+
+  /**
+   * Creates an instance with one key derivation thread and one cipher thread
+   * per available processor, and queues of {@value #DEFAULT_QUEUE_CAPACITY}
+   * operations.
+   *
+   * @param cryptor
+   *          the cryptor to run operations with
+   */
+  public AsyncJNCryptor(JNCryptor cryptor) {
+    this(cryptor, Runtime.getRuntime().availableProcessors(),
+        DEFAULT_QUEUE_CAPACITY, Runtime.getRuntime().availableProcessors(),
+        DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Creates an instance with pools of a given size.
+   *
+   * @param cryptor
+   *          the cryptor to run operations with
+   * @param keyDerivationThreads
+   *          the number of threads for operations that derive keys from a
+   *          password
+   * @param keyDerivationQueueCapacity
+   *          the number of password-based operations that may wait for a
+   *          thread
+   * @param cipherThreads
+   *          the number of threads for operations that use existing keys
+   * @param cipherQueueCapacity
+   *          the number of key-based operations that may wait for a thread
+   */
+  public AsyncJNCryptor(JNCryptor cryptor, int keyDerivationThreads,
+      int keyDerivationQueueCapacity, int cipherThreads,
+      int cipherQueueCapacity) {
+    Validate.notNull(cryptor, "Cryptor cannot be null.");
+    Validate.isTrue(keyDerivationThreads > 0,
+        "Key derivation threads must be positive.");
+    Validate.isTrue(keyDerivationQueueCapacity > 0,
+        "Key derivation queue capacity must be positive.");
+    Validate.isTrue(cipherThreads > 0, "Cipher threads must be positive.");
+    Validate.isTrue(cipherQueueCapacity > 0,
+        "Cipher queue capacity must be positive.");
+
+    this.cryptor = cryptor;
+    keyDerivationPool = createPool("jncryptor-kdf", keyDerivationThreads,
+        keyDerivationQueueCapacity, keyDerivationRejections);
+    cipherPool = createPool("jncryptor-cipher", cipherThreads,
+        cipherQueueCapacity, cipherRejections);
+  }
+
+  private static ThreadPoolExecutor createPool(String name, int threads,
+      int queueCapacity, RejectedExecutionHandler rejectionHandler) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity), new WorkerFactory(
+            name), rejectionHandler);
+  }
+
+  /**
+   * Generates a key from a password and salt, as
+   * {@link JNCryptor#keyForPassword(char[], byte[])} does.
+   *
+   * @param password
+   *          password to use for PBKDF. Cannot be empty or <code>null</code>.
+   * @param salt
+   *          salt for password, cannot be <code>null</code>
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the key
+   * @throws RejectedExecutionException
+   *           if the key derivation queue is full
+   */
+  public Future<SecretKey> keyForPassword(final char[] password,
+      final byte[] salt, Callback<? super SecretKey> callback) {
+    return submit(keyDerivationPool, new Callable<SecretKey>() {
+      @Override
+      public SecretKey call() throws CryptorException {
+        return cryptor.keyForPassword(password, salt);
+      }
+    }, callback);
+  }
+
+  /**
+   * Generates a key from a password and a random salt, as
+   * {@link JNCryptor#getPasswordKey(char[])} does.
+   *
+   * @param password
+   *          password to use for PBKDF. Cannot be empty or <code>null</code>.
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return an object containing the key and the salt
+   * @throws RejectedExecutionException
+   *           if the key derivation queue is full
+   */
+  public Future<PasswordKey> getPasswordKey(final char[] password,
+      Callback<? super PasswordKey> callback) {
+    return submit(keyDerivationPool, new Callable<PasswordKey>() {
+      @Override
+      public PasswordKey call() throws CryptorException {
+        return cryptor.getPasswordKey(password);
+      }
+    }, callback);
+  }
+
+  /**
+   * Encrypts data with a password, as
+   * {@link JNCryptor#encryptData(byte[], char[])} does.
+   *
+   * @param plaintext
+   *          the data to encrypt
+   * @param password
+   *          the password to use for encryption
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the ciphertext
+   * @throws RejectedExecutionException
+   *           if the key derivation queue is full
+   */
+  public Future<byte[]> encryptData(final byte[] plaintext,
+      final char[] password, Callback<? super byte[]> callback) {
+    return submit(keyDerivationPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.encryptData(plaintext, password);
+      }
+    }, callback);
+  }
+
+  /**
+   * Encrypts data with a password, salt values and IV, as
+   * {@link JNCryptor#encryptData(byte[], char[], byte[], byte[], byte[])}
+   * does.
+   *
+   * @param plaintext
+   *          the data to encrypt
+   * @param password
+   *          the password (cannot be <code>null</code> or empty)
+   * @param encryptionSalt
+   *          eight bytes of random salt value
+   * @param hmacSalt
+   *          eight bytes of random salt value
+   * @param iv
+   *          sixteen byte AES IV
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the ciphertext
+   * @throws RejectedExecutionException
+   *           if the key derivation queue is full
+   */
+  public Future<byte[]> encryptData(final byte[] plaintext,
+      final char[] password, final byte[] encryptionSalt,
+      final byte[] hmacSalt, final byte[] iv,
+      Callback<? super byte[]> callback) {
+    return submit(keyDerivationPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.encryptData(plaintext, password, encryptionSalt,
+            hmacSalt, iv);
+      }
+    }, callback);
+  }
+
+  /**
+   * Decrypts data with a password, as
+   * {@link JNCryptor#decryptData(byte[], char[])} does.
+   *
+   * @param ciphertext
+   *          the data to decrypt
+   * @param password
+   *          password to use for the decryption. Cannot be empty or
+   *          <code>null</code>.
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the plaintext
+   * @throws RejectedExecutionException
+   *           if the key derivation queue is full
+   */
+  public Future<byte[]> decryptData(final byte[] ciphertext,
+      final char[] password, Callback<? super byte[]> callback) {
+    return submit(keyDerivationPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.decryptData(ciphertext, password);
+      }
+    }, callback);
+  }
+
+  /**
+   * Encrypts data with keys, as
+   * {@link JNCryptor#encryptData(byte[], SecretKey, SecretKey)} does.
+   *
+   * @param plaintext
+   *          the data to encrypt
+   * @param encryptionKey
+   *          the key to encrypt with
+   * @param hmacKey
+   *          the key to calculate the HMAC with
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the ciphertext
+   * @throws RejectedExecutionException
+   *           if the cipher queue is full
+   */
+  public Future<byte[]> encryptData(final byte[] plaintext,
+      final SecretKey encryptionKey, final SecretKey hmacKey,
+      Callback<? super byte[]> callback) {
+    return submit(cipherPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+      }
+    }, callback);
+  }
+
+  /**
+   * Encrypts data with keys derived from a password, as
+   * {@link JNCryptor#encryptData(byte[], PasswordKey, PasswordKey)} does.
+   *
+   * @param plaintext
+   *          the data to encrypt
+   * @param encryptionKey
+   *          the pre-computed encryption key
+   * @param hmacKey
+   *          the pre-computed HMAC key
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the ciphertext
+   * @throws RejectedExecutionException
+   *           if the cipher queue is full
+   */
+  public Future<byte[]> encryptData(final byte[] plaintext,
+      final PasswordKey encryptionKey, final PasswordKey hmacKey,
+      Callback<? super byte[]> callback) {
+    return submit(cipherPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.encryptData(plaintext, encryptionKey, hmacKey);
+      }
+    }, callback);
+  }
+
+  /**
+   * Decrypts data with keys, as
+   * {@link JNCryptor#decryptData(byte[], SecretKey, SecretKey)} does.
+   *
+   * @param ciphertext
+   *          the data to decrypt
+   * @param decryptionKey
+   *          the key to decrypt with
+   * @param hmacKey
+   *          the key to verify the HMAC with
+   * @param callback
+   *          receives the outcome, or <code>null</code>
+   * @return the plaintext
+   * @throws RejectedExecutionException
+   *           if the cipher queue is full
+   */
+  public Future<byte[]> decryptData(final byte[] ciphertext,
+      final SecretKey decryptionKey, final SecretKey hmacKey,
+      Callback<? super byte[]> callback) {
+    return submit(cipherPool, new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws CryptorException {
+        return cryptor.decryptData(ciphertext, decryptionKey, hmacKey);
+      }
+    }, callback);
+  }
+
+  private static <T> Future<T> submit(ThreadPoolExecutor pool,
+      Callable<T> operation, final Callback<? super T> callback) {
+    FutureTask<T> task = new FutureTask<T>(operation) {
+      @Override
+      protected void done() {
+        if (callback == null) {
+          return;
+        }
+
+        T result;
+        try {
+          result = get();
+        } catch (ExecutionException e) {
+          callback.onFailure(e.getCause());
+          return;
+        } catch (CancellationException e) {
+          callback.onFailure(e);
+          return;
+        } catch (InterruptedException e) {
+          // Cannot happen, as the task has completed
+          Thread.currentThread().interrupt();
+          callback.onFailure(e);
+          return;
+        }
+        callback.onSuccess(result);
+      }
+    };
+    pool.execute(task);
+    return task;
+  }
+
+  /**
+   * @return the number of password-based operations waiting for a thread
+   */
+  public int getKeyDerivationQueueDepth() {
+    return keyDerivationPool.getQueue().size();
+  }
+
+  /**
+   * @return the number of key-based operations waiting for a thread
+   */
+  public int getCipherQueueDepth() {
+    return cipherPool.getQueue().size();
+  }
+
+  /**
+   * @return the number of password-based operations rejected because the
+   *         queue was full or this instance had been shut down
+   */
+  public long getKeyDerivationRejectedCount() {
+    return keyDerivationRejections.count.get();
+  }
+
+  /**
+   * @return the number of key-based operations rejected because the queue
+   *         was full or this instance had been shut down
+   */
+  public long getCipherRejectedCount() {
+    return cipherRejections.count.get();
+  }
+
+  /**
+   * Stops accepting operations. Operations that have already been accepted
+   * are still completed.
+   */
+  public void shutdown() {
+    keyDerivationPool.shutdown();
+    cipherPool.shutdown();
+  }
+
+  /**
+   * Rejects operations in the same way as
+   * {@link ThreadPoolExecutor.AbortPolicy}, counting each one.
+   */
+  private static class CountingRejectionHandler implements
+      RejectedExecutionHandler {
+
+    private final AtomicLong count = new AtomicLong();
+
+    @Override
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+      count.incrementAndGet();
+      throw new RejectedExecutionException(executor.isShutdown()
+          ? "Cryptor has been shut down." : "Operation queue is full.");
+    }
+  }
+
+  /**
+   * Creates named daemon threads, so that an instance that is not shut down
+   * does not keep the JVM alive.
+   */
+  private static class WorkerFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    WorkerFactory(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+/**
+ * Tracks how much of an array one thread has written, so that another thread
+ * can process the completed part while the rest is still being written. Used
+ * to let the HMAC trail the cipher through a message.
+ */
+final class ChunkProgress {
+
+  private int end;
+  private boolean failed;
+
+  /**
+   * Creates a tracker.
+   *
+   * @param start
+   *          the index up to which the array is already complete
+   */
+  ChunkProgress(int start) {
+    end = start;
+  }
+
+  /**
+   * Records that the array is complete up to an index.
+   *
+   * @param newEnd
+   *          the index up to which the array is complete
+   */
+  synchronized void advance(int newEnd) {
+    end = newEnd;
+    notifyAll();
+  }
+
+  /**
+   * Records that the writer has failed and will make no further progress.
+   */
+  synchronized void fail() {
+    failed = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits until the array is complete beyond an index.
+   *
+   * @param position
+   *          the index up to which the caller has processed the array
+   * @return the index up to which the array is complete, which is greater than
+   *         {@code position}
+   * @throws CryptorException
+   *           if the writer failed, or the thread was interrupted
+   */
+  synchronized int awaitBeyond(int position) throws CryptorException {
+    while (end <= position) {
+      if (failed) {
+        throw new CryptorException("Encryption failed.");
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new CryptorException("Interrupted while waiting for ciphertext.",
+            e);
+      }
+    }
+    return end;
+  }
+}
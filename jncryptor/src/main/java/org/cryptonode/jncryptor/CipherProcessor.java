@@ -0,0 +1,331 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Demand accounting shared by the encrypting and decrypting processors. Each
+ * buffer received from upstream is transformed into at most one buffer for
+ * downstream, and a single buffer is requested from upstream at a time, only
+ * while downstream has unmet demand and nothing is waiting to be sent. At
+ * most one buffer of output is therefore held at any time, however far
+ * upstream and downstream run apart.
+ * <p>
+ * Signals to downstream and requests to upstream are made by whichever thread
+ * finds work to do, one thread at a time, and never while holding the lock.
+ * The cipher state is only touched by upstream signals, which the
+ * specification requires to be serialised, and is released once the stream
+ * has ended and no transformation is in progress.
+ */
+abstract class CipherProcessor implements
+    Flow.Processor<ByteBuffer, ByteBuffer> {
+
+  private static final Flow.Subscription NO_SUBSCRIPTION =
+      new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+      };
+
+  private final AtomicInteger drainRequests = new AtomicInteger();
+
+  // Access to these variables must be synchronized
+  private final Queue<ByteBuffer> pending = new ArrayDeque<ByteBuffer>();
+  private Flow.Subscription upstream;
+  private boolean subscribed;
+  private Flow.Subscriber<? super ByteBuffer> downstream;
+  private long demand;
+  private boolean upstreamRequested;
+  private boolean upstreamDone;
+  private boolean outputFinished;
+  private boolean cancelled;
+  private Throwable error;
+  private boolean cancelUpstreamOnError;
+  private boolean terminated;
+  private boolean transforming;
+  private boolean released;
+
+  /**
+   * Processes a buffer received from upstream.
+   *
+   * @param input
+   *          the buffer, which is consumed
+   * @return the output, which may be empty
+   * @throws IOException
+   *           if the data is invalid or cannot be processed
+   */
+  abstract ByteBuffer transform(ByteBuffer input) throws IOException;
+
+  /**
+   * Completes the output once upstream has completed.
+   *
+   * @return the final output, which may be empty
+   * @throws IOException
+   *           if the data is invalid or cannot be processed
+   */
+  abstract ByteBuffer finish() throws IOException;
+
+  /**
+   * Releases the cipher state. Called once, after the last transformation.
+   */
+  abstract void release();
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    Validate.notNull(subscriber, "Subscriber cannot be null.");
+
+    boolean accepted = false;
+    synchronized (this) {
+      if (!subscribed) {
+        subscribed = true;
+        accepted = true;
+      }
+    }
+    if (!accepted) {
+      subscriber.onSubscribe(NO_SUBSCRIPTION);
+      subscriber.onError(new IllegalStateException(
+          "Processor supports a single subscriber."));
+      return;
+    }
+
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(long n) {
+        synchronized (CipherProcessor.this) {
+          if (n <= 0) {
+            fail(new IllegalArgumentException(
+                "Requested count must be positive."), true);
+          } else {
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+          }
+        }
+        drain();
+      }
+
+      @Override
+      public void cancel() {
+        synchronized (CipherProcessor.this) {
+          cancelled = true;
+        }
+        drain();
+      }
+    });
+
+    // Nothing is sent downstream until onSubscribe has returned
+    synchronized (this) {
+      downstream = subscriber;
+    }
+    drain();
+  }
+
+  @Override
+  public void onSubscribe(Flow.Subscription subscription) {
+    synchronized (this) {
+      if (upstream == null) {
+        upstream = subscription;
+        subscription = null;
+      }
+    }
+    if (subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    drain();
+  }
+
+  @Override
+  public void onNext(ByteBuffer item) {
+    synchronized (this) {
+      upstreamRequested = false;
+      if (terminated || error != null || upstreamDone) {
+        return;
+      }
+      transforming = true;
+    }
+
+    ByteBuffer output = null;
+    IOException failure = null;
+    try {
+      output = transform(item);
+    } catch (IOException e) {
+      failure = e;
+    }
+
+    synchronized (this) {
+      transforming = false;
+      if (failure != null) {
+        fail(failure, true);
+      } else if (output.hasRemaining()) {
+        pending.add(output);
+      }
+      releaseIfIdle();
+    }
+    drain();
+  }
+
+  @Override
+  public void onError(Throwable throwable) {
+    synchronized (this) {
+      upstreamDone = true;
+      fail(throwable, false);
+    }
+    drain();
+  }
+
+  @Override
+  public void onComplete() {
+    synchronized (this) {
+      if (terminated || error != null || upstreamDone) {
+        return;
+      }
+      upstreamDone = true;
+      transforming = true;
+    }
+
+    ByteBuffer output = null;
+    IOException failure = null;
+    try {
+      output = finish();
+    } catch (IOException e) {
+      failure = e;
+    }
+
+    synchronized (this) {
+      transforming = false;
+      if (failure != null) {
+        fail(failure, false);
+      } else {
+        if (output.hasRemaining()) {
+          pending.add(output);
+        }
+        outputFinished = true;
+      }
+      releaseIfIdle();
+    }
+    drain();
+  }
+
+  /**
+   * Records the first failure, which is sent downstream in place of any
+   * output not yet delivered.
+   */
+  private void fail(Throwable throwable, boolean cancelUpstream) {
+    if (error == null) {
+      error = throwable;
+      cancelUpstreamOnError = cancelUpstream;
+    }
+  }
+
+  private void releaseIfIdle() {
+    if (terminated && !transforming && !released) {
+      released = true;
+      release();
+    }
+  }
+
+  /**
+   * Delivers pending output, errors and completion downstream, and requests
+   * more input from upstream, until there is nothing more to do.
+   */
+  private void drain() {
+    if (drainRequests.getAndIncrement() != 0) {
+      // The thread already draining will loop again
+      return;
+    }
+
+    int missed = 1;
+    do {
+      while (drainOnce()) {
+        // Keep going while progress is made
+      }
+      missed = drainRequests.addAndGet(-missed);
+    } while (missed != 0);
+  }
+
+  /**
+   * Makes one signal, if there is one to make.
+   *
+   * @return <code>true</code> if a signal was made
+   */
+  private boolean drainOnce() {
+    Flow.Subscriber<? super ByteBuffer> subscriber;
+    Flow.Subscription cancelFrom = null;
+    Flow.Subscription requestFrom = null;
+    ByteBuffer item = null;
+    Throwable failure = null;
+    boolean complete = false;
+
+    synchronized (this) {
+      subscriber = downstream;
+      if (terminated) {
+        return false;
+      } else if (cancelled) {
+        terminated = true;
+        cancelFrom = upstream;
+      } else if (subscriber == null) {
+        return false;
+      } else if (error != null) {
+        terminated = true;
+        failure = error;
+        cancelFrom = cancelUpstreamOnError ? upstream : null;
+      } else if (!pending.isEmpty()) {
+        if (demand == 0) {
+          return false;
+        }
+        item = pending.remove();
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+      } else if (outputFinished) {
+        terminated = true;
+        complete = true;
+      } else if (demand > 0 && upstream != null && !upstreamRequested
+          && !upstreamDone) {
+        upstreamRequested = true;
+        requestFrom = upstream;
+      } else {
+        return false;
+      }
+
+      if (terminated) {
+        pending.clear();
+        releaseIfIdle();
+      }
+    }
+
+    if (cancelFrom != null) {
+      cancelFrom.cancel();
+    }
+    if (requestFrom != null) {
+      requestFrom.request(1);
+    } else if (item != null) {
+      subscriber.onNext(item);
+    } else if (failure != null) {
+      subscriber.onError(failure);
+    } else if (complete) {
+      subscriber.onComplete();
+    }
+    return true;
+  }
+}
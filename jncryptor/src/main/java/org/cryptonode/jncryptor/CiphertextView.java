@@ -0,0 +1,209 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A parsed message that refers to the caller's buffer rather than copying
+ * it. Only the header is read during parsing; the ciphertext body and the
+ * data to HMAC are exposed as views of the original buffer.
+ * <p>
+ * Accepts versions 2 and 3 of the data format.
+ */
+final class CiphertextView {
+
+  private final ByteBuffer data;
+  private final int version;
+  private final boolean isPasswordBased;
+  private final int ivOffset;
+  private final int ciphertextOffset;
+  private final int hmacOffset;
+
+  private CiphertextView(ByteBuffer data, int version,
+      boolean isPasswordBased, int ivOffset) {
+    this.data = data;
+    this.version = version;
+    this.isPasswordBased = isPasswordBased;
+    this.ivOffset = ivOffset;
+    this.ciphertextOffset = ivOffset + AES256Ciphertext.AES_BLOCK_SIZE;
+    this.hmacOffset = data.limit() - AES256Ciphertext.HMAC_SIZE;
+  }
+
+  /**
+   * Parses the message between the position and limit of a buffer. The
+   * buffer's position, limit and contents are not changed, but the view
+   * reflects any later change to the contents.
+   *
+   * @param message
+   *          the buffer holding the message
+   * @return the view
+   * @throws InvalidDataException
+   *           if the data is not valid
+   */
+  static CiphertextView parse(ByteBuffer message) throws InvalidDataException {
+    Validate.notNull(message, "Data cannot be null.");
+
+    ByteBuffer data = message.slice();
+
+    // Need the header to be able to determine the length
+    if (data.limit() < AES256Ciphertext.HEADER_SIZE) {
+      throw new InvalidDataException("Not enough data to read header.");
+    }
+
+    int version = data.get(0);
+    if (version != AES256Ciphertext.V2_VERSION
+        && version != AES256Ciphertext.V3_VERSION) {
+      throw new InvalidDataException(String.format(
+          "Unrecognised version number: %d.", version));
+    }
+
+    byte options = data.get(1);
+
+    // Test for any invalid flags
+    if (options != 0x00 && options != AES256Ciphertext.FLAG_PASSWORD) {
+      throw new InvalidDataException("Unrecognised bit in the options byte.");
+    }
+
+    // If the password bit is set, we can expect salt values
+    boolean isPasswordBased = ((options & AES256Ciphertext.FLAG_PASSWORD) == AES256Ciphertext.FLAG_PASSWORD);
+
+    final int minimumLength = (isPasswordBased) ? AES256Ciphertext.MINIMUM_LENGTH_WITH_PASSWORD
+        : AES256Ciphertext.MINIMUM_LENGTH_WITHOUT_PASSWORD;
+
+    if (data.limit() < minimumLength) {
+      throw new InvalidDataException(String.format(
+          "Data must be a minimum length of %d bytes, but found %d bytes.",
+          minimumLength, data.limit()));
+    }
+
+    int ivOffset = AES256Ciphertext.HEADER_SIZE;
+    if (isPasswordBased) {
+      ivOffset += AES256Ciphertext.ENCRYPTION_SALT_LENGTH
+          + AES256Ciphertext.HMAC_SALT_LENGTH;
+    }
+
+    return new CiphertextView(data, version, isPasswordBased, ivOffset);
+  }
+
+  /**
+   * Parses a message held in a range of an array. The array is not copied,
+   * so the view reflects any later change to its contents.
+   *
+   * @param data
+   *          the array holding the message
+   * @param offset
+   *          the offset of the message in {@code data}
+   * @param length
+   *          the length of the message
+   * @return the view
+   * @throws InvalidDataException
+   *           if the data is not valid
+   */
+  static CiphertextView parse(byte[] data, int offset, int length)
+      throws InvalidDataException {
+    Validate.notNull(data, "Data cannot be null.");
+
+    return parse(ByteBuffer.wrap(data, offset, length));
+  }
+
+  /**
+   * @return the version
+   */
+  int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return <code>true</code> if the ciphertext was created with a password
+   */
+  boolean isPasswordBased() {
+    return isPasswordBased;
+  }
+
+  /**
+   * @return the total length of the message
+   */
+  int getLength() {
+    return data.limit();
+  }
+
+  /**
+   * @return a copy of the encryption salt, or {@code null} if the message is
+   *         not password-based
+   */
+  byte[] getEncryptionSalt() {
+    if (!isPasswordBased) {
+      return null;
+    }
+    return copy(AES256Ciphertext.HEADER_SIZE,
+        AES256Ciphertext.ENCRYPTION_SALT_LENGTH);
+  }
+
+  /**
+   * @return a copy of the HMAC salt, or {@code null} if the message is not
+   *         password-based
+   */
+  byte[] getHmacSalt() {
+    if (!isPasswordBased) {
+      return null;
+    }
+    return copy(AES256Ciphertext.HEADER_SIZE
+        + AES256Ciphertext.ENCRYPTION_SALT_LENGTH,
+        AES256Ciphertext.HMAC_SALT_LENGTH);
+  }
+
+  /**
+   * @return a copy of the IV
+   */
+  byte[] getIv() {
+    return copy(ivOffset, AES256Ciphertext.AES_BLOCK_SIZE);
+  }
+
+  /**
+   * @return a copy of the HMAC
+   */
+  byte[] getHmac() {
+    return copy(hmacOffset, AES256Ciphertext.HMAC_SIZE);
+  }
+
+  /**
+   * @return a view of the data to compute the HMAC over
+   */
+  ByteBuffer getDataToHMAC() {
+    return range(0, hmacOffset);
+  }
+
+  /**
+   * @return a view of the encrypted data
+   */
+  ByteBuffer getCiphertext() {
+    return range(ciphertextOffset, hmacOffset);
+  }
+
+  private ByteBuffer range(int from, int to) {
+    ByteBuffer result = data.duplicate();
+    result.limit(to);
+    result.position(from);
+    return result;
+  }
+
+  private byte[] copy(int offset, int length) {
+    byte[] result = new byte[length];
+    ByteBuffer source = range(offset, offset + length);
+    source.get(result);
+    return result;
+  }
+}
@@ -0,0 +1,164 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+/**
+ * Encrypts and decrypts messages with a fixed pair of keys.
+ * <p>
+ * A session creates its {@code Cipher} and {@code Mac} once. The {@code Mac}
+ * is keyed when the session is created and acts as a prototype: each message
+ * is authenticated with a clone of it, so the HMAC key setup is never
+ * repeated. The cipher is re-initialised with a fresh IV per message, which
+ * most providers do without repeating the AES key schedule when the key is
+ * unchanged.
+ * <p>
+ * Create instances with
+ * {@link AES256JNCryptor#createSession(SecretKey, SecretKey)} or
+ * {@link AES256JNCryptor#createSession(PasswordKey, PasswordKey)}. A session
+ * is not thread-safe; create one session per thread.
+ *
+ * @since 1.3.0
+ */
+public class CryptorSession {
+
+  private final SecretKey encryptionKey;
+  private final byte[] encryptionSalt;
+  private final byte[] hmacSalt;
+  private final Cipher cipher;
+  private final Mac macPrototype;
+  private boolean macCloneable = true;
+
+  /**
+   * Creates a session.
+   *
+   * @param encryptionKey
+   *          the encryption key
+   * @param hmacKey
+   *          the HMAC key
+   * @param encryptionSalt
+   *          the encryption salt, or {@code null} for key-based output
+   * @param hmacSalt
+   *          the HMAC salt, or {@code null} for key-based output
+   * @throws CryptorException
+   *           if the primitives cannot be created or the keys are invalid
+   */
+  CryptorSession(SecretKey encryptionKey, SecretKey hmacKey,
+      byte[] encryptionSalt, byte[] hmacSalt) throws CryptorException {
+    this.encryptionKey = encryptionKey;
+    this.encryptionSalt = encryptionSalt;
+    this.hmacSalt = hmacSalt;
+
+    try {
+      cipher = Cipher.getInstance(AES256JNCryptor.AES_CIPHER_ALGORITHM);
+      macPrototype = Mac.getInstance(AES256JNCryptor.HMAC_ALGORITHM);
+      macPrototype.init(hmacKey);
+    } catch (InvalidKeyException e) {
+      throw new CryptorException(
+          "Caught InvalidKeyException. Do you have unlimited strength jurisdiction files installed?",
+          e);
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to initialise session.", e);
+    }
+  }
+
+  /**
+   * Encrypts data with the session keys, using a random IV.
+   *
+   * @param plaintext
+   *          the data to encrypt
+   * @return the ciphertext, in the format described at <a href=
+   *         "https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-Spec-v3.md"
+   *         >https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-
+   *         Spec-v3.md</a>
+   * @throws CryptorException
+   *           if an error occurred
+   */
+  public byte[] encryptData(byte[] plaintext) throws CryptorException {
+    Validate.notNull(plaintext, "Plaintext cannot be null.");
+
+    byte[] iv = AES256JNCryptor
+        .getSecureRandomData(AES256JNCryptor.AES_BLOCK_SIZE);
+
+    try {
+      return AES256JNCryptor.encrypt(plaintext, encryptionKey, iv,
+          encryptionSalt, hmacSalt, cipher, keyedMac());
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to generate ciphertext.", e);
+    }
+  }
+
+  /**
+   * Decrypts data with the session keys.
+   *
+   * @param ciphertext
+   *          data to decrypt. Must be in the format described at <a href=
+   *          "https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor-Spec-v3.md"
+   *          >https://github.com/RNCryptor/RNCryptor-Spec/blob/master/RNCryptor
+   *          -Spec-v3.md</a>
+   * @return the plain text
+   * @throws InvalidHMACException
+   *           if the HMAC value is incorrect
+   * @throws CryptorException
+   *           if the data cannot be decrypted, or if this session was created
+   *           from password keys and the ciphertext salts do not match
+   */
+  public byte[] decryptData(byte[] ciphertext) throws CryptorException,
+      InvalidHMACException {
+    Validate.notNull(ciphertext, "Ciphertext cannot be null.");
+
+    CiphertextView view = AES256JNCryptor.parseCiphertext(ciphertext);
+
+    if (encryptionSalt != null
+        && !(view.isPasswordBased()
+            && Arrays.equals(encryptionSalt, view.getEncryptionSalt()) && Arrays
+              .equals(hmacSalt, view.getHmacSalt()))) {
+      throw new CryptorException(
+          "Ciphertext salt values do not match the session keys.");
+    }
+
+    try {
+      return AES256JNCryptor.decrypt(view, encryptionKey, cipher, keyedMac());
+    } catch (GeneralSecurityException e) {
+      throw new CryptorException("Failed to decrypt message.", e);
+    }
+  }
+
+  /**
+   * Returns a {@code Mac} ready to process a new message. This is a clone of
+   * the keyed prototype where the provider supports it. Otherwise the
+   * prototype itself is returned, which {@code Mac.doFinal} leaves in its
+   * freshly keyed state.
+   *
+   * @return a keyed {@code Mac}
+   */
+  private Mac keyedMac() {
+    if (macCloneable) {
+      try {
+        return (Mac) macPrototype.clone();
+      } catch (CloneNotSupportedException e) {
+        macCloneable = false;
+      }
+    }
+    return macPrototype;
+  }
+}
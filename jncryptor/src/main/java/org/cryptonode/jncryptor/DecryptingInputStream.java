@@ -0,0 +1,160 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Decrypts the body of a JNCryptor stream. Ciphertext is read from the
+ * trailer stream in chunks of a configurable size, each chunk is added to the
+ * HMAC and then decrypted with {@link Cipher#update(byte[], int, int, byte[],
+ * int)} into a reused buffer, or directly into the caller's array when it is
+ * large enough. Nothing is allocated after construction.
+ * <p>
+ * When the ciphertext is exhausted the HMAC is verified before the final
+ * block is decrypted, so the padding of a modified stream is never examined.
+ */
+final class DecryptingInputStream extends InputStream {
+
+  private static final int END_OF_STREAM = -1;
+
+  private final TrailerInputStream in;
+  private final Cipher cipher;
+  private final Mac mac;
+  private final byte[] inputBuffer;
+  private final byte[] outputBuffer;
+  private int outputPosition;
+  private int outputLimit;
+  private boolean finished;
+
+  /**
+   * Creates a decrypting stage.
+   *
+   * @param in
+   *          the stream of ciphertext, holding back the HMAC as its trailer
+   * @param cipher
+   *          the cipher, initialised for decryption
+   * @param mac
+   *          the MAC, initialised and already updated with the header
+   * @param bufferSize
+   *          the number of ciphertext bytes to process at a time
+   */
+  DecryptingInputStream(TrailerInputStream in, Cipher cipher, Mac mac,
+      int bufferSize) {
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    this.in = in;
+    this.cipher = cipher;
+    this.mac = mac;
+    inputBuffer = new byte[bufferSize];
+    outputBuffer = new byte[bufferSize + AES256Ciphertext.AES_BLOCK_SIZE];
+  }
+
+  @Override
+  public int read() throws IOException {
+    while (outputPosition == outputLimit) {
+      if (finished) {
+        return END_OF_STREAM;
+      }
+      outputLimit = process(outputBuffer, 0);
+      outputPosition = 0;
+    }
+    return outputBuffer[outputPosition++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+
+    while (outputPosition == outputLimit) {
+      if (finished) {
+        return END_OF_STREAM;
+      }
+
+      if (len >= outputBuffer.length) {
+        // The most one chunk can produce fits, so skip the copy
+        int count = process(b, off);
+        if (count > 0) {
+          return count;
+        }
+      } else {
+        outputLimit = process(outputBuffer, 0);
+        outputPosition = 0;
+      }
+    }
+
+    int count = Math.min(len, outputLimit - outputPosition);
+    System.arraycopy(outputBuffer, outputPosition, b, off, count);
+    outputPosition += count;
+    return count;
+  }
+
+  /**
+   * Reads and decrypts the next chunk of ciphertext.
+   *
+   * @param out
+   *          the array to write plaintext to, which must have space for at
+   *          least {@code outputBuffer.length} bytes
+   * @param outOffset
+   *          the offset in {@code out}
+   * @return the number of plaintext bytes written, which may be zero
+   * @throws StreamIntegrityException
+   *           if the stream has ended and the HMAC does not match
+   * @throws IOException
+   *           if an I/O error occurs
+   */
+  private int process(byte[] out, int outOffset) throws IOException {
+    int numBytesRead = in.read(inputBuffer, 0, inputBuffer.length);
+
+    try {
+      if (numBytesRead == END_OF_STREAM) {
+        finished = true;
+        verifyHmac();
+        return cipher.doFinal(out, outOffset);
+      }
+
+      mac.update(inputBuffer, 0, numBytesRead);
+      return cipher.update(inputBuffer, 0, numBytesRead, out, outOffset);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to decrypt data.", e);
+    }
+  }
+
+  private void verifyHmac() throws StreamIntegrityException {
+    byte[] originalHMAC = in.getTrailer();
+    byte[] calculatedHMAC = mac.doFinal();
+
+    if (!AES256JNCryptor.arraysEqual(originalHMAC, calculatedHMAC)) {
+      throw new StreamIntegrityException("MAC validation failed.");
+    }
+  }
+
+  @Override
+  public int available() {
+    return outputLimit - outputPosition;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,119 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.crypto.SecretKey;
+
+/**
+ * The key material supplied to a decrypting channel, which is checked against
+ * (or used to derive keys from) the header once it has been read. Keys are
+ * either supplied directly, supplied with the salt values they were derived
+ * from, or derived from a password by a cryptor.
+ */
+final class DecryptionKeys {
+
+  private final boolean passwordBased;
+  private final SecretKey decryptionKey;
+  private final SecretKey hmacKey;
+  private final byte[] decryptionSalt;
+  private final byte[] hmacSalt;
+  private final char[] password;
+  private final AES256JNCryptor cryptor;
+
+  private DecryptionKeys(boolean passwordBased, SecretKey decryptionKey,
+      SecretKey hmacKey, byte[] decryptionSalt, byte[] hmacSalt,
+      char[] password, AES256JNCryptor cryptor) {
+    this.passwordBased = passwordBased;
+    this.decryptionKey = decryptionKey;
+    this.hmacKey = hmacKey;
+    this.decryptionSalt = decryptionSalt;
+    this.hmacSalt = hmacSalt;
+    this.password = password;
+    this.cryptor = cryptor;
+  }
+
+  static DecryptionKeys forKeys(SecretKey decryptionKey, SecretKey hmacKey) {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+    return new DecryptionKeys(false, decryptionKey, hmacKey, null, null, null,
+        null);
+  }
+
+  static DecryptionKeys forPasswordKeys(PasswordKey decryptionKey,
+      PasswordKey hmacKey) {
+    Validate.notNull(decryptionKey, "Decryption key cannot be null.");
+    Validate.notNull(hmacKey, "HMAC key cannot be null.");
+    return new DecryptionKeys(true, decryptionKey.getKey(), hmacKey.getKey(),
+        decryptionKey.getSalt(), hmacKey.getSalt(), null, null);
+  }
+
+  static DecryptionKeys forPassword(char[] password, AES256JNCryptor cryptor) {
+    Validate.notNull(password, "Password cannot be null.");
+    Validate.notNull(cryptor, "Cryptor cannot be null.");
+    return new DecryptionKeys(true, null, null, null, null, password, cryptor);
+  }
+
+  /**
+   * @return the size of the header expected with this key material
+   */
+  int getHeaderSize() {
+    return passwordBased ? AES256v2HeaderData.getSizeWithPassword()
+        : AES256v2HeaderData.getSizeWithoutPassword();
+  }
+
+  /**
+   * Checks the header against the key material and returns the keys to use,
+   * deriving them if necessary.
+   *
+   * @param header
+   *          the parsed header
+   * @return the decryption key followed by the HMAC key
+   * @throws IOException
+   *           if the header does not suit the key material, or key
+   *           derivation fails
+   */
+  SecretKey[] keysFor(AES256v2HeaderData header) throws IOException {
+    if (!passwordBased) {
+      if (header.isPasswordBased()) {
+        throw new IOException("Expected options byte to be zero.");
+      }
+      return new SecretKey[] { decryptionKey, hmacKey };
+    }
+
+    if (!header.isPasswordBased()) {
+      throw new IOException("Expected password flag missing.");
+    }
+
+    if (password == null) {
+      if (!Arrays.equals(decryptionSalt, header.getEncryptionSalt())
+          || !Arrays.equals(hmacSalt, header.getHmacSalt())) {
+        throw new IOException(
+            "Channel salt values do not match the supplied keys.");
+      }
+      return new SecretKey[] { decryptionKey, hmacKey };
+    }
+
+    try {
+      return new SecretKey[] {
+          cryptor.keyForPassword(password, header.getEncryptionSalt()),
+          cryptor.keyForPassword(password, header.getHmacSalt()) };
+    } catch (CryptorException e) {
+      throw new IOException("Failed to derive keys from password.", e);
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+/**
+ * The outcome of decrypting a message without throwing an exception for
+ * messages that are rejected. Rejection is expected on paths that handle
+ * untrusted input, where tampered, truncated or wrong-password messages are
+ * common, and reporting it as a value avoids building an exception and its
+ * stack trace for each one.
+ * <p>
+ * Rejected results carry no plaintext and, apart from failures, are shared
+ * instances.
+ * 
+ * @since 1.3.0
+ */
+public final class DecryptionResult {
+
+  /**
+   * The status of a decryption attempt.
+   */
+  public enum Status {
+    /**
+     * The HMAC was verified and the message was decrypted.
+     */
+    SUCCESS,
+
+    /**
+     * The message could not be parsed, for example because it was truncated
+     * or has an unrecognised version or options byte.
+     */
+    INVALID_DATA,
+
+    /**
+     * The HMAC did not match. The message was modified or the key (or
+     * password) is wrong.
+     */
+    INVALID_HMAC,
+
+    /**
+     * The HMAC was verified but the message could not be decrypted. Only
+     * reported by batch operations, which carry on with the other messages.
+     * The cause is available from {@link DecryptionResult#getFailure()}.
+     */
+    FAILED
+  }
+
+  static final DecryptionResult INVALID_DATA = new DecryptionResult(
+      Status.INVALID_DATA, null);
+
+  static final DecryptionResult INVALID_HMAC = new DecryptionResult(
+      Status.INVALID_HMAC, null);
+
+  private final Status status;
+  private final byte[] plaintext;
+  private final CryptorException failure;
+
+  private DecryptionResult(Status status, byte[] plaintext) {
+    this(status, plaintext, null);
+  }
+
+  private DecryptionResult(Status status, byte[] plaintext,
+      CryptorException failure) {
+    this.status = status;
+    this.plaintext = plaintext;
+    this.failure = failure;
+  }
+
+  static DecryptionResult success(byte[] plaintext) {
+    return new DecryptionResult(Status.SUCCESS, plaintext);
+  }
+
+  static DecryptionResult failure(CryptorException failure) {
+    return new DecryptionResult(Status.FAILED, null, failure);
+  }
+
+  /**
+   * @return the status
+   */
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return <code>true</code> if the message was decrypted
+   */
+  public boolean isSuccess() {
+    return status == Status.SUCCESS;
+  }
+
+  /**
+   * Returns the decrypted data.
+   * 
+   * @return the plaintext
+   * @throws IllegalStateException
+   *           if the message was not decrypted
+   */
+  public byte[] getPlaintext() {
+    if (status != Status.SUCCESS) {
+      throw new IllegalStateException(String.format(
+          "No plaintext is available for a result with status %s.", status));
+    }
+    return plaintext;
+  }
+
+  /**
+   * @return the reason the message could not be decrypted if the status is
+   *         {@link Status#FAILED}, otherwise {@code null}
+   */
+  public CryptorException getFailure() {
+    return failure;
+  }
+}
@@ -0,0 +1,279 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A bounded cache of keys derived from passwords. When the same password and
+ * salt are used repeatedly (for example, when decrypting many messages that
+ * were produced with a reused {@link PasswordKey}), a cache avoids repeating
+ * the expensive PBKDF2 step.
+ * <p>
+ * Entries are keyed on an HMAC-SHA256 of the password, the salt and the
+ * iteration count. The HMAC key is a random secret generated for each cache
+ * and replaced by {@link #clear()}, so a digest found in memory cannot be
+ * used to test password guesses without also recovering the secret. The
+ * password itself is never stored. When the cache is full, the least
+ * recently used entry is evicted and its key material is overwritten with
+ * zeros.
+ * <p>
+ * Caching is disabled by default. Enable it by passing an instance to
+ * {@link AES256JNCryptor#setKeyCache(DerivedKeyCache)}. This class is
+ * thread-safe and a single instance may be shared by many {@code JNCryptor}
+ * objects.
+ *
+ * @since 1.3.0
+ */
+public class DerivedKeyCache {
+
+  /**
+   * Length of the secret used to digest passwords.
+   */
+  private static final int PASSWORD_SECRET_LENGTH = 32;
+
+  private final int maximumSize;
+
+  // Access to these variables must be synchronized
+  private final LinkedHashMap<Key, byte[]> entries;
+  private final Mac passwordMac;
+  private byte[] passwordSecret;
+  private long hitCount;
+  private long missCount;
+  private long evictionCount;
+
+  /**
+   * Creates a new cache that holds at most {@code maximumSize} keys.
+   *
+   * @param maximumSize
+   *          the maximum number of keys to hold
+   */
+  public DerivedKeyCache(int maximumSize) {
+    Validate.isTrue(maximumSize > 0, "Maximum size must be positive.");
+
+    this.maximumSize = maximumSize;
+    this.entries = new LinkedHashMap<Key, byte[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, byte[]> eldest) {
+        if (size() > DerivedKeyCache.this.maximumSize) {
+          Arrays.fill(eldest.getValue(), (byte) 0);
+          evictionCount++;
+          return true;
+        }
+        return false;
+      }
+    };
+
+    try {
+      this.passwordMac = Mac.getInstance(AES256JNCryptor.HMAC_ALGORITHM);
+    } catch (GeneralSecurityException e) {
+      // Every Java platform is required to support HmacSHA256
+      throw new IllegalStateException(String.format("%s is not available.",
+          AES256JNCryptor.HMAC_ALGORITHM), e);
+    }
+    resetPasswordSecret();
+  }
+
+  /**
+   * Creates the lookup key for a password, salt and iteration count.
+   *
+   * @param password
+   *          the password
+   * @param salt
+   *          the salt
+   * @param iterations
+   *          the number of PBKDF iterations
+   * @return the lookup key
+   */
+  Key keyFor(char[] password, byte[] salt, int iterations) {
+    return new Key(digestPassword(password), salt.clone(), iterations);
+  }
+
+  /**
+   * Returns a cached key.
+   *
+   * @param key
+   *          the lookup key
+   * @return the cached key, or {@code null} if there is no entry
+   */
+  synchronized SecretKey get(Key key) {
+    byte[] keyData = entries.get(key);
+    if (keyData == null) {
+      missCount++;
+      return null;
+    }
+
+    hitCount++;
+    return new SecretKeySpec(keyData, AES256JNCryptor.AES_NAME);
+  }
+
+  /**
+   * Stores a key, evicting the least recently used entry if the cache is full.
+   *
+   * @param key
+   *          the lookup key
+   * @param secretKey
+   *          the derived key
+   */
+  synchronized void put(Key key, SecretKey secretKey) {
+    byte[] previous = entries.put(key, secretKey.getEncoded());
+    if (previous != null) {
+      Arrays.fill(previous, (byte) 0);
+    }
+  }
+
+  /**
+   * Removes all entries from the cache, overwriting the key material and the
+   * secret used to digest passwords with zeros. A new secret is generated for
+   * later entries. The statistics are not reset.
+   */
+  public synchronized void clear() {
+    Iterator<byte[]> iterator = entries.values().iterator();
+    while (iterator.hasNext()) {
+      Arrays.fill(iterator.next(), (byte) 0);
+      iterator.remove();
+    }
+    resetPasswordSecret();
+  }
+
+  /**
+   * Overwrites the current password secret, if any, and keys the password MAC
+   * with a new one.
+   */
+  private synchronized void resetPasswordSecret() {
+    if (passwordSecret != null) {
+      Arrays.fill(passwordSecret, (byte) 0);
+    }
+    passwordSecret = AES256JNCryptor
+        .getSecureRandomData(PASSWORD_SECRET_LENGTH);
+    try {
+      passwordMac.init(new SecretKeySpec(passwordSecret,
+          AES256JNCryptor.HMAC_ALGORITHM));
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Failed to initialize password MAC.",
+          e);
+    }
+  }
+
+  /**
+   * @return the number of keys currently held
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the maximum number of keys this cache will hold
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * @return the number of lookups that found a cached key
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return the number of lookups that did not find a cached key
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the number of keys evicted to make room for new keys
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  /**
+   * Computes an HMAC-SHA256, keyed with this cache's secret, of the UTF-8
+   * encoding of a password. The intermediate encoding is overwritten before
+   * returning.
+   *
+   * @param password
+   *          the password
+   * @return the digest
+   */
+  private byte[] digestPassword(char[] password) {
+    ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer
+        .wrap(password));
+    try {
+      synchronized (this) {
+        passwordMac.update(encoded);
+        return passwordMac.doFinal();
+      }
+    } finally {
+      Arrays.fill(encoded.array(), (byte) 0);
+    }
+  }
+
+  /**
+   * Identifies a cached key by password digest, salt and iteration count.
+   */
+  static final class Key {
+    private final byte[] passwordDigest;
+    private final byte[] salt;
+    private final int iterations;
+
+    private Key(byte[] passwordDigest, byte[] salt, int iterations) {
+      this.passwordDigest = passwordDigest;
+      this.salt = salt;
+      this.iterations = iterations;
+    }
+
+    @Override
+    public int hashCode() {
+      final int prime = 31;
+      int result = 1;
+      result = prime * result + iterations;
+      result = prime * result + Arrays.hashCode(passwordDigest);
+      result = prime * result + Arrays.hashCode(salt);
+      return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return iterations == other.iterations
+          && MessageDigest.isEqual(passwordDigest, other.passwordDigest)
+          && Arrays.equals(salt, other.salt);
+    }
+  }
+}
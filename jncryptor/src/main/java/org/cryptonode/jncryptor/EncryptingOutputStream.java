@@ -0,0 +1,191 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+
+/**
+ * Encrypts the body of a JNCryptor stream. Plaintext is encrypted in chunks of
+ * a configurable size with {@link Cipher#update(byte[], int, int, byte[], int)}
+ * into a reused buffer, and each chunk of ciphertext is added to the HMAC and
+ * written to the underlying stream in the same pass.
+ * <p>
+ * Small writes are staged in a block-aligned plaintext buffer until a full
+ * chunk is available; writes of at least a chunk are encrypted straight from
+ * the caller's array. The header is held back and written together with the
+ * first chunk of ciphertext, and the HMAC is written together with the last,
+ * so the underlying stream sees one write per chunk.
+ */
+final class EncryptingOutputStream extends OutputStream {
+
+  private static final int MAXIMUM_HEADER_SIZE = AES256Ciphertext.HEADER_SIZE
+      + AES256Ciphertext.ENCRYPTION_SALT_LENGTH
+      + AES256Ciphertext.HMAC_SALT_LENGTH + AES256Ciphertext.AES_BLOCK_SIZE;
+
+  private final OutputStream out;
+  private final Cipher cipher;
+  private final Mac mac;
+  private final byte[] plaintextBuffer;
+  private int plaintextCount;
+  private final byte[] outputBuffer;
+  private int outputCount;
+
+  /**
+   * Creates an encrypting stage.
+   *
+   * @param out
+   *          the stream to write the header, ciphertext and HMAC to
+   * @param cipher
+   *          the cipher, initialised for encryption
+   * @param mac
+   *          the MAC, initialised with the HMAC key
+   * @param bufferSize
+   *          the number of plaintext bytes to process at a time, which is
+   *          rounded down to a whole number of AES blocks
+   */
+  EncryptingOutputStream(OutputStream out, Cipher cipher, Mac mac,
+      int bufferSize) {
+    Validate.isTrue(bufferSize > 0, "Buffer size must be greater than zero.");
+
+    this.out = out;
+    this.cipher = cipher;
+    this.mac = mac;
+
+    int chunkSize = Math.max(AES256Ciphertext.AES_BLOCK_SIZE, bufferSize
+        - bufferSize % AES256Ciphertext.AES_BLOCK_SIZE);
+    plaintextBuffer = new byte[chunkSize];
+    outputBuffer = new byte[MAXIMUM_HEADER_SIZE + chunkSize
+        + AES256Ciphertext.AES_BLOCK_SIZE + AES256Ciphertext.HMAC_SIZE];
+  }
+
+  /**
+   * Adds data that is authenticated but not encrypted. The data is written
+   * with the first ciphertext, or when the stream is flushed or closed.
+   *
+   * @param header
+   *          the header, which must be added before any plaintext
+   */
+  void writeHeader(byte[] header) {
+    mac.update(header);
+    System.arraycopy(header, 0, outputBuffer, outputCount, header.length);
+    outputCount += header.length;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (plaintextCount == plaintextBuffer.length) {
+      encryptBuffered();
+    }
+    plaintextBuffer[plaintextCount++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (plaintextCount > 0) {
+      int count = Math.min(len, plaintextBuffer.length - plaintextCount);
+      System.arraycopy(b, off, plaintextBuffer, plaintextCount, count);
+      plaintextCount += count;
+      off += count;
+      len -= count;
+
+      if (plaintextCount < plaintextBuffer.length) {
+        return;
+      }
+      encryptBuffered();
+    }
+
+    while (len >= plaintextBuffer.length) {
+      encrypt(b, off, plaintextBuffer.length);
+      off += plaintextBuffer.length;
+      len -= plaintextBuffer.length;
+    }
+
+    System.arraycopy(b, off, plaintextBuffer, 0, len);
+    plaintextCount = len;
+  }
+
+  private void encryptBuffered() throws IOException {
+    encrypt(plaintextBuffer, 0, plaintextCount);
+    plaintextCount = 0;
+  }
+
+  /**
+   * Encrypts plaintext and writes the resulting ciphertext, preceded by any
+   * pending header, to the underlying stream.
+   */
+  private void encrypt(byte[] b, int off, int len) throws IOException {
+    try {
+      int count = cipher.update(b, off, len, outputBuffer, outputCount);
+      mac.update(outputBuffer, outputCount, count);
+      outputCount += count;
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to encrypt data.", e);
+    }
+    writeOutput();
+  }
+
+  private void writeOutput() throws IOException {
+    if (outputCount > 0) {
+      out.write(outputBuffer, 0, outputCount);
+      outputCount = 0;
+    }
+  }
+
+  /**
+   * Encrypts and writes all staged plaintext, then flushes the underlying
+   * stream. A trailing partial AES block stays inside the cipher until more
+   * data arrives or the stream is closed, because it cannot be encrypted until
+   * the block is complete.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (plaintextCount > 0) {
+      encryptBuffered();
+    } else {
+      writeOutput();
+    }
+    out.flush();
+  }
+
+  /**
+   * Encrypts the remaining plaintext, writes it together with the HMAC in a
+   * single write, then closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      int count = cipher.doFinal(plaintextBuffer, 0, plaintextCount,
+          outputBuffer, outputCount);
+      plaintextCount = 0;
+      mac.update(outputBuffer, outputCount, count);
+      outputCount += count;
+
+      mac.doFinal(outputBuffer, outputCount);
+      outputCount += AES256Ciphertext.HMAC_SIZE;
+
+      writeOutput();
+      out.flush();
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Failed to encrypt data.", e);
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,73 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+/**
+ * The outcome of encrypting one record of a batch. A failure to encrypt one
+ * record is reported in its result rather than thrown, so the rest of the
+ * batch is still encrypted.
+ *
+ * @see AES256JNCryptor#encryptAll(java.util.List, javax.crypto.SecretKey,
+ *      javax.crypto.SecretKey)
+ * @since 1.3.0
+ */
+public final class EncryptionResult {
+
+  private final byte[] ciphertext;
+  private final CryptorException failure;
+
+  private EncryptionResult(byte[] ciphertext, CryptorException failure) {
+    this.ciphertext = ciphertext;
+    this.failure = failure;
+  }
+
+  static EncryptionResult success(byte[] ciphertext) {
+    return new EncryptionResult(ciphertext, null);
+  }
+
+  static EncryptionResult failure(CryptorException failure) {
+    return new EncryptionResult(null, failure);
+  }
+
+  /**
+   * @return <code>true</code> if the record was encrypted
+   */
+  public boolean isSuccess() {
+    return failure == null;
+  }
+
+  /**
+   * Returns the encrypted data.
+   *
+   * @return the ciphertext
+   * @throws IllegalStateException
+   *           if the record was not encrypted
+   */
+  public byte[] getCiphertext() {
+    if (failure != null) {
+      throw new IllegalStateException(
+          "No ciphertext is available for a failed result.", failure);
+    }
+    return ciphertext;
+  }
+
+  /**
+   * @return the reason the record was not encrypted, or {@code null} if it
+   *         was encrypted
+   */
+  public CryptorException getFailure() {
+    return failure;
+  }
+}
@@ -0,0 +1,128 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+/**
+ * Interfaces for flow-controlled streams of items, with the same methods and
+ * rules as {@code java.util.concurrent.Flow} in Java 9 and the Reactive
+ * Streams specification. They are defined here because this library targets
+ * Java 7. Adapting them to either of those APIs means forwarding each method
+ * to the method of the same name.
+ * <p>
+ * A {@link Subscriber} receives items from a {@link Publisher} only after
+ * requesting them through its {@link Subscription}, so a slow subscriber is
+ * never sent more than it has asked for.
+ *
+ * @see AES256JNCryptorEncryptingProcessor
+ * @see AES256JNCryptorDecryptingProcessor
+ * @since 1.3.0
+ */
+public final class Flow {
+
+  private Flow() {
+  }
+
+  /**
+   * A producer of items, which are sent to subscribers as they request them.
+   *
+   * @param <T>
+   *          the item type
+   */
+  public interface Publisher<T> {
+
+    /**
+     * Adds a subscriber. The subscriber's
+     * {@link Subscriber#onSubscribe(Subscription)} method is called, followed
+     * by {@link Subscriber#onError(Throwable)} if it cannot be added.
+     *
+     * @param subscriber
+     *          the subscriber
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  /**
+   * A receiver of items. Its methods are called one at a time, in the order
+   * {@code onSubscribe}, any number of {@code onNext}, then at most one of
+   * {@code onError} or {@code onComplete}.
+   *
+   * @param <T>
+   *          the item type
+   */
+  public interface Subscriber<T> {
+
+    /**
+     * Called before any other method, with the subscription used to request
+     * items.
+     *
+     * @param subscription
+     *          the subscription
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called with each requested item.
+     *
+     * @param item
+     *          the item
+     */
+    void onNext(T item);
+
+    /**
+     * Called when the publisher fails. No further methods are called.
+     *
+     * @param throwable
+     *          the failure
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Called when the publisher has sent every item. No further methods are
+     * called.
+     */
+    void onComplete();
+  }
+
+  /**
+   * The link between a publisher and one subscriber.
+   */
+  public interface Subscription {
+
+    /**
+     * Adds to the number of items the subscriber is ready to receive.
+     *
+     * @param n
+     *          the number of additional items, which must be positive
+     */
+    void request(long n);
+
+    /**
+     * Stops the delivery of items. Items already in transit may still arrive.
+     */
+    void cancel();
+  }
+
+  /**
+   * A stage that is both a subscriber and a publisher, transforming the items
+   * it receives.
+   *
+   * @param <T>
+   *          the type of items received
+   * @param <R>
+   *          the type of items published
+   */
+  public interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+  }
+}
@@ -0,0 +1,114 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A computation handed to an {@link Executor} that the forking thread may run
+ * itself if no worker has started it by the time the result is needed. This
+ * means a saturated (or even single-threaded) executor can never deadlock a
+ * caller that forks work from inside one of its own tasks.
+ *
+ * @param <T>
+ *          the result type
+ */
+abstract class ForkedTask<T> implements Runnable {
+
+  private final AtomicBoolean claimed = new AtomicBoolean();
+  private final CountDownLatch done = new CountDownLatch(1);
+  private T result;
+  private Throwable failure;
+
+  /**
+   * Performs the computation.
+   *
+   * @return the result
+   * @throws CryptorException
+   *           if the computation fails
+   */
+  abstract T compute() throws CryptorException;
+
+  /**
+   * Submits this task to an executor. If the executor rejects the task it will
+   * be run by {@link #join()} instead.
+   *
+   * @param executor
+   *          the executor
+   * @return this task
+   */
+  ForkedTask<T> fork(Executor executor) {
+    try {
+      executor.execute(this);
+    } catch (RejectedExecutionException e) {
+      // join() will run the task on the calling thread
+    }
+    return this;
+  }
+
+  @Override
+  public void run() {
+    if (!claimed.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      result = compute();
+    } catch (Throwable t) {
+      failure = t;
+    } finally {
+      done.countDown();
+    }
+  }
+
+  /**
+   * Returns the result, running the computation on the calling thread if it
+   * has not been started elsewhere.
+   *
+   * @return the result
+   * @throws CryptorException
+   *           if the computation failed
+   */
+  T join() throws CryptorException {
+    run();
+
+    boolean interrupted = false;
+    while (true) {
+      try {
+        done.await();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if (failure instanceof CryptorException) {
+      throw (CryptorException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw new CryptorException(failure);
+    }
+    return result;
+  }
+}
@@ -0,0 +1,41 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+/**
+ * The implementations of PBKDF2-HMAC-SHA1 available to
+ * {@link AES256JNCryptor}. Every engine produces identical keys.
+ *
+ * @see AES256JNCryptor#setKeyDerivationEngine(KeyDerivationEngine)
+ * @since 1.3.0
+ */
+public enum KeyDerivationEngine {
+
+  /**
+   * Uses the {@code PBKDF2WithHmacSHA1} algorithm of the installed JCE
+   * providers. This is the default.
+   */
+  JCE,
+
+  /**
+   * Uses a pure Java implementation that precomputes the HMAC pad states once
+   * per password and performs no allocation inside the iteration loop. This
+   * is typically faster than {@link #JCE} on platforms whose providers
+   * allocate per iteration, such as Android. It does not benefit from
+   * hardware SHA-1 support or from any certification of the installed
+   * providers, so measure before switching on a JVM with SHA intrinsics.
+   */
+  PURE_JAVA
+}
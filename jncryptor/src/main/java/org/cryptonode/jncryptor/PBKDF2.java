@@ -0,0 +1,177 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * PBKDF2 (RFC 2898) using HMAC-SHA1, computed one output block at a time.
+ * <p>
+ * A 256-bit key needs two SHA-1 sized blocks and each block is an independent
+ * chain of HMAC invocations, so the blocks can be computed on different
+ * threads. The output is identical to the JCE {@code PBKDF2WithHmacSHA1}
+ * algorithm, which encodes passwords as UTF-8.
+ * <p>
+ * An instance is bound to a single password. {@link #deriveBlock} may be
+ * called concurrently from several threads.
+ */
+abstract class PBKDF2 {
+
+  /**
+   * The HMAC algorithm used as the PRF.
+   */
+  static final String PRF_ALGORITHM = "HmacSHA1";
+
+  /**
+   * The output size of the PRF, in bytes.
+   */
+  static final int PRF_OUTPUT_SIZE = 20;
+
+  /**
+   * Creates a block function for a password.
+   *
+   * @param engine
+   *          the engine to compute blocks with
+   * @param password
+   *          the encoded password. The instance keeps its own copy.
+   * @return the block function
+   */
+  static PBKDF2 getInstance(KeyDerivationEngine engine, byte[] password) {
+    switch (engine) {
+    case PURE_JAVA:
+      return new PBKDF2HmacSHA1(password);
+    default:
+      return new JcePBKDF2(password);
+    }
+  }
+
+  /**
+   * Returns the number of PRF blocks needed to produce a key.
+   *
+   * @param keyLength
+   *          the key length in bytes
+   * @return the number of blocks
+   */
+  static int blockCount(int keyLength) {
+    return (keyLength + PRF_OUTPUT_SIZE - 1) / PRF_OUTPUT_SIZE;
+  }
+
+  /**
+   * Encodes a password as UTF-8, matching the JCE implementation.
+   *
+   * @param password
+   *          the password
+   * @return the encoded password, which the caller should overwrite once used
+   */
+  static byte[] encodePassword(char[] password) {
+    ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer
+        .wrap(password));
+    try {
+      byte[] result = new byte[encoded.remaining()];
+      encoded.get(result);
+      return result;
+    } finally {
+      Arrays.fill(encoded.array(), (byte) 0);
+    }
+  }
+
+  /**
+   * Computes one block of PBKDF2 output and copies the first {@code length}
+   * bytes of it into {@code out}.
+   *
+   * @param salt
+   *          the salt
+   * @param iterations
+   *          the number of iterations
+   * @param blockIndex
+   *          the one-based block index
+   * @param out
+   *          the array to write to
+   * @param outOffset
+   *          the offset in {@code out} to write from
+   * @param length
+   *          the number of bytes of this block to write
+   * @throws GeneralSecurityException
+   *           if the PRF is not available
+   */
+  abstract void deriveBlock(byte[] salt, int iterations, int blockIndex,
+      byte[] out, int outOffset, int length) throws GeneralSecurityException;
+
+  /**
+   * Overwrites any password-dependent state held by this instance.
+   */
+  abstract void destroy();
+
+  /**
+   * Computes blocks with the {@code HmacSHA1} implementation of the installed
+   * JCE providers.
+   */
+  private static final class JcePBKDF2 extends PBKDF2 {
+    private final byte[] password;
+
+    JcePBKDF2(byte[] password) {
+      this.password = password.clone();
+    }
+
+    @Override
+    void deriveBlock(byte[] salt, int iterations, int blockIndex, byte[] out,
+        int outOffset, int length) throws GeneralSecurityException {
+
+      byte[] u = new byte[PRF_OUTPUT_SIZE];
+      byte[] t = new byte[PRF_OUTPUT_SIZE];
+
+      Mac prf = Primitives.borrowPrf();
+      try {
+        prf.init(new SecretKeySpec(password, PRF_ALGORITHM));
+
+        // U1 = PRF(P, S || INT(i))
+        prf.update(salt);
+        prf.update((byte) (blockIndex >>> 24));
+        prf.update((byte) (blockIndex >>> 16));
+        prf.update((byte) (blockIndex >>> 8));
+        prf.update((byte) blockIndex);
+        prf.doFinal(u, 0);
+        System.arraycopy(u, 0, t, 0, PRF_OUTPUT_SIZE);
+
+        // Uj = PRF(P, Uj-1), T = U1 ^ U2 ^ ... ^ Uc
+        for (int i = 1; i < iterations; i++) {
+          prf.update(u);
+          prf.doFinal(u, 0);
+          for (int j = 0; j < PRF_OUTPUT_SIZE; j++) {
+            t[j] ^= u[j];
+          }
+        }
+
+        System.arraycopy(t, 0, out, outOffset, length);
+      } finally {
+        Primitives.releasePrf(prf);
+        Arrays.fill(u, (byte) 0);
+        Arrays.fill(t, (byte) 0);
+      }
+    }
+
+    @Override
+    void destroy() {
+      Arrays.fill(password, (byte) 0);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java PBKDF2-HMAC-SHA1 block function.
+ * <p>
+ * HMAC hashes the key XORed with the inner pad, then the message. The first
+ * part never changes for a given password, so the SHA-1 state after the
+ * padded key block (the midstate) is computed once in the constructor for
+ * both the inner and outer pads. Each PBKDF2 iteration then costs exactly two
+ * SHA-1 compressions over a 20-byte message, run on {@code int} state with no
+ * allocation.
+ */
+final class PBKDF2HmacSHA1 extends PBKDF2 {
+
+  private static final int SHA1_BLOCK_SIZE = 64;
+
+  private static final int[] SHA1_INITIAL_STATE = { 0x67452301, 0xEFCDAB89,
+      0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+  /**
+   * Length in bits of the message for an inner or outer hash once the pad
+   * block has been absorbed: one block plus a SHA-1 digest.
+   */
+  private static final int ITERATION_MESSAGE_BITS = (SHA1_BLOCK_SIZE + PRF_OUTPUT_SIZE) * 8;
+
+  private final int[] innerState = new int[5];
+  private final int[] outerState = new int[5];
+
+  /**
+   * Precomputes the pad midstates for a password.
+   *
+   * @param password
+   *          the encoded password
+   */
+  PBKDF2HmacSHA1(byte[] password) {
+    byte[] key = new byte[SHA1_BLOCK_SIZE];
+    int[] w = new int[80];
+
+    if (password.length > SHA1_BLOCK_SIZE) {
+      int[] digest = new int[5];
+      hash(SHA1_INITIAL_STATE, 0, password, digest, w);
+      writeInts(digest, key, 0, PRF_OUTPUT_SIZE);
+      Arrays.fill(digest, 0);
+    } else {
+      System.arraycopy(password, 0, key, 0, password.length);
+    }
+
+    padState(key, (byte) 0x36, innerState, w);
+    padState(key, (byte) 0x5C, outerState, w);
+
+    Arrays.fill(key, (byte) 0);
+    Arrays.fill(w, 0);
+  }
+
+  @Override
+  void deriveBlock(byte[] salt, int iterations, int blockIndex, byte[] out,
+      int outOffset, int length) {
+
+    int[] w = new int[80];
+    int[] u = new int[5];
+
+    // U1 = PRF(P, S || INT(i))
+    byte[] message = new byte[salt.length + 4];
+    System.arraycopy(salt, 0, message, 0, salt.length);
+    message[salt.length] = (byte) (blockIndex >>> 24);
+    message[salt.length + 1] = (byte) (blockIndex >>> 16);
+    message[salt.length + 2] = (byte) (blockIndex >>> 8);
+    message[salt.length + 3] = (byte) blockIndex;
+    hash(innerState, SHA1_BLOCK_SIZE, message, u, w);
+    finishIteration(outerState, u, w);
+
+    int t0 = u[0], t1 = u[1], t2 = u[2], t3 = u[3], t4 = u[4];
+
+    // Uj = PRF(P, Uj-1), T = U1 ^ U2 ^ ... ^ Uc
+    for (int i = 1; i < iterations; i++) {
+      finishIteration(innerState, u, w);
+      finishIteration(outerState, u, w);
+      t0 ^= u[0];
+      t1 ^= u[1];
+      t2 ^= u[2];
+      t3 ^= u[3];
+      t4 ^= u[4];
+    }
+
+    u[0] = t0;
+    u[1] = t1;
+    u[2] = t2;
+    u[3] = t3;
+    u[4] = t4;
+    writeInts(u, out, outOffset, length);
+
+    Arrays.fill(u, 0);
+    Arrays.fill(w, 0);
+  }
+
+  @Override
+  void destroy() {
+    Arrays.fill(innerState, 0);
+    Arrays.fill(outerState, 0);
+  }
+
+  /**
+   * Absorbs the padded key into a fresh SHA-1 state.
+   */
+  private static void padState(byte[] key, byte pad, int[] state, int[] w) {
+    for (int i = 0; i < 16; i++) {
+      w[i] = ((key[i * 4] ^ pad) & 0xFF) << 24
+          | ((key[i * 4 + 1] ^ pad) & 0xFF) << 16
+          | ((key[i * 4 + 2] ^ pad) & 0xFF) << 8
+          | ((key[i * 4 + 3] ^ pad) & 0xFF);
+    }
+    compress(SHA1_INITIAL_STATE, w, state);
+  }
+
+  /**
+   * Hashes a 20-byte message, held in {@code u}, starting from a pad
+   * midstate. The digest replaces the contents of {@code u}.
+   */
+  private static void finishIteration(int[] midstate, int[] u, int[] w) {
+    w[0] = u[0];
+    w[1] = u[1];
+    w[2] = u[2];
+    w[3] = u[3];
+    w[4] = u[4];
+    w[5] = 0x80000000;
+    for (int i = 6; i < 15; i++) {
+      w[i] = 0;
+    }
+    w[15] = ITERATION_MESSAGE_BITS;
+    compress(midstate, w, u);
+  }
+
+  /**
+   * Completes a SHA-1 hash of {@code message}, starting from a state that has
+   * already absorbed {@code prefixLength} bytes.
+   */
+  private static void hash(int[] initialState, int prefixLength,
+      byte[] message, int[] out, int[] w) {
+    int paddedLength = (message.length + 9 + SHA1_BLOCK_SIZE - 1)
+        / SHA1_BLOCK_SIZE * SHA1_BLOCK_SIZE;
+    byte[] padded = new byte[paddedLength];
+    System.arraycopy(message, 0, padded, 0, message.length);
+    padded[message.length] = (byte) 0x80;
+
+    long bitLength = ((long) prefixLength + message.length) * 8;
+    for (int i = 0; i < 8; i++) {
+      padded[paddedLength - 1 - i] = (byte) (bitLength >>> (8 * i));
+    }
+
+    System.arraycopy(initialState, 0, out, 0, 5);
+    for (int offset = 0; offset < paddedLength; offset += SHA1_BLOCK_SIZE) {
+      for (int i = 0; i < 16; i++) {
+        int j = offset + i * 4;
+        w[i] = (padded[j] & 0xFF) << 24 | (padded[j + 1] & 0xFF) << 16
+            | (padded[j + 2] & 0xFF) << 8 | (padded[j + 3] & 0xFF);
+      }
+      compress(out, w, out);
+    }
+    Arrays.fill(padded, (byte) 0);
+  }
+
+  /**
+   * The SHA-1 compression function. Reads the message block from
+   * {@code w[0..15]}, using the rest of {@code w} for the message schedule,
+   * and writes {@code state + compress(block)} to {@code out}, which may be
+   * the same array as {@code state}.
+   */
+  private static void compress(int[] state, int[] w, int[] out) {
+    for (int t = 16; t < 80; t++) {
+      int x = w[t - 3] ^ w[t - 8] ^ w[t - 14] ^ w[t - 16];
+      w[t] = (x << 1) | (x >>> 31);
+    }
+
+    int a = state[0];
+    int b = state[1];
+    int c = state[2];
+    int d = state[3];
+    int e = state[4];
+
+    for (int t = 0; t < 20; t++) {
+      int temp = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + w[t]
+          + 0x5A827999;
+      e = d;
+      d = c;
+      c = (b << 30) | (b >>> 2);
+      b = a;
+      a = temp;
+    }
+    for (int t = 20; t < 40; t++) {
+      int temp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[t] + 0x6ED9EBA1;
+      e = d;
+      d = c;
+      c = (b << 30) | (b >>> 2);
+      b = a;
+      a = temp;
+    }
+    for (int t = 40; t < 60; t++) {
+      int temp = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e
+          + w[t] + 0x8F1BBCDC;
+      e = d;
+      d = c;
+      c = (b << 30) | (b >>> 2);
+      b = a;
+      a = temp;
+    }
+    for (int t = 60; t < 80; t++) {
+      int temp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + w[t] + 0xCA62C1D6;
+      e = d;
+      d = c;
+      c = (b << 30) | (b >>> 2);
+      b = a;
+      a = temp;
+    }
+
+    out[0] = state[0] + a;
+    out[1] = state[1] + b;
+    out[2] = state[2] + c;
+    out[3] = state[3] + d;
+    out[4] = state[4] + e;
+  }
+
+  /**
+   * Writes the first {@code length} bytes of big-endian {@code ints}.
+   */
+  private static void writeInts(int[] ints, byte[] out, int outOffset,
+      int length) {
+    for (int i = 0; i < length; i++) {
+      out[outOffset + i] = (byte) (ints[i >> 2] >>> (24 - 8 * (i & 3)));
+    }
+  }
+}
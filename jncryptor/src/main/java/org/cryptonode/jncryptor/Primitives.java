@@ -0,0 +1,170 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+
+/**
+ * Per-thread pools of the JCE objects used by this library. Looking up a
+ * provider and constructing a {@code Cipher} or {@code Mac} is expensive
+ * relative to processing a small message, so each thread keeps one instance
+ * of each primitive for reuse.
+ * <p>
+ * Callers borrow an instance, initialise it, and release it when finished. A
+ * borrowed instance is removed from the pool until it is released, so nested
+ * or overlapping use on a single thread (for example, a stream holding a
+ * cipher while the same thread encrypts a byte array) always receives
+ * distinct objects. Instances may be released on a different thread from the
+ * one that borrowed them.
+ * <p>
+ * A released {@code Cipher} or {@code Mac} retains its last key until it is
+ * next initialised.
+ */
+final class Primitives {
+
+  private static volatile boolean poolingEnabled = true;
+
+  private static final Pool<Cipher> AES_CIPHERS = new Pool<Cipher>() {
+    @Override
+    Cipher create() throws GeneralSecurityException {
+      return Cipher.getInstance(AES256JNCryptor.AES_CIPHER_ALGORITHM);
+    }
+  };
+
+  private static final Pool<Cipher> AES_NO_PADDING_CIPHERS = new Pool<Cipher>() {
+    @Override
+    Cipher create() throws GeneralSecurityException {
+      return Cipher.getInstance(AES256JNCryptor.AES_NO_PADDING_ALGORITHM);
+    }
+  };
+
+  private static final Pool<Mac> HMACS = new Pool<Mac>() {
+    @Override
+    Mac create() throws GeneralSecurityException {
+      return Mac.getInstance(AES256JNCryptor.HMAC_ALGORITHM);
+    }
+  };
+
+  private static final Pool<Mac> PRFS = new Pool<Mac>() {
+    @Override
+    Mac create() throws GeneralSecurityException {
+      return Mac.getInstance(PBKDF2.PRF_ALGORITHM);
+    }
+  };
+
+  private static final Pool<SecretKeyFactory> KEY_FACTORIES = new Pool<SecretKeyFactory>() {
+    @Override
+    SecretKeyFactory create() throws GeneralSecurityException {
+      return SecretKeyFactory
+          .getInstance(AES256JNCryptor.KEY_DERIVATION_ALGORITHM);
+    }
+  };
+
+  private Primitives() {
+  }
+
+  static boolean isPoolingEnabled() {
+    return poolingEnabled;
+  }
+
+  static void setPoolingEnabled(boolean enabled) {
+    poolingEnabled = enabled;
+  }
+
+  /**
+   * @return an AES/CBC/PKCS5Padding cipher
+   */
+  static Cipher borrowAesCipher() throws GeneralSecurityException {
+    return AES_CIPHERS.borrow();
+  }
+
+  static void releaseAesCipher(Cipher cipher) {
+    AES_CIPHERS.release(cipher);
+  }
+
+  /**
+   * @return an AES/CBC/NoPadding cipher
+   */
+  static Cipher borrowAesNoPaddingCipher() throws GeneralSecurityException {
+    return AES_NO_PADDING_CIPHERS.borrow();
+  }
+
+  static void releaseAesNoPaddingCipher(Cipher cipher) {
+    AES_NO_PADDING_CIPHERS.release(cipher);
+  }
+
+  /**
+   * @return an HMAC-SHA256 instance
+   */
+  static Mac borrowHmac() throws GeneralSecurityException {
+    return HMACS.borrow();
+  }
+
+  static void releaseHmac(Mac mac) {
+    HMACS.release(mac);
+  }
+
+  /**
+   * @return an HMAC-SHA1 instance, used as the PBKDF2 PRF
+   */
+  static Mac borrowPrf() throws GeneralSecurityException {
+    return PRFS.borrow();
+  }
+
+  static void releasePrf(Mac mac) {
+    PRFS.release(mac);
+  }
+
+  /**
+   * @return a PBKDF2WithHmacSHA1 key factory
+   */
+  static SecretKeyFactory borrowKeyFactory() throws GeneralSecurityException {
+    return KEY_FACTORIES.borrow();
+  }
+
+  static void releaseKeyFactory(SecretKeyFactory factory) {
+    KEY_FACTORIES.release(factory);
+  }
+
+  /**
+   * Holds at most one idle instance per thread.
+   */
+  private abstract static class Pool<T> {
+    private final ThreadLocal<T> idle = new ThreadLocal<T>();
+
+    abstract T create() throws GeneralSecurityException;
+
+    T borrow() throws GeneralSecurityException {
+      if (poolingEnabled) {
+        T instance = idle.get();
+        if (instance != null) {
+          idle.set(null);
+          return instance;
+        }
+      }
+      return create();
+    }
+
+    void release(T instance) {
+      if (poolingEnabled && instance != null) {
+        idle.set(instance);
+      }
+    }
+  }
+}
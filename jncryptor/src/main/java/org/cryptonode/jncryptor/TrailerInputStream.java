@@ -20,6 +20,11 @@ import java.io.InputStream;
 
 /**
  * A wrapper for an input stream that contains trailer data.
+ * <p>
+ * The most recent {@code trailerSize} bytes read from the underlying stream
+ * are held back in a ring buffer. Reads go straight into the caller's array
+ * and the held-back bytes are exchanged with the new ones, so no memory is
+ * allocated after the first read and bytes are never shifted.
  */
 class TrailerInputStream extends InputStream {
 
@@ -31,7 +36,12 @@ class TrailerInputStream extends InputStream {
   private final int trailerSize;
   private final InputStream in;
 
+  /**
+   * Ring buffer holding the trailer candidate. The oldest byte is at
+   * {@code trailerStart}.
+   */
   private byte[] trailerBuffer;
+  private int trailerStart;
 
   /**
    * Creates a {@code TrailerInputStream} that wraps another stream.
@@ -96,15 +106,14 @@ class TrailerInputStream extends InputStream {
       return nextByte;
     }
 
-    if (trailerBuffer.length == 0) {
+    if (trailerSize == 0) {
       return nextByte;
     }
 
-    int result = trailerBuffer[0] & 0xFF; // must be positive
+    int result = trailerBuffer[trailerStart] & 0xFF; // must be positive
 
-    System.arraycopy(trailerBuffer, 1, trailerBuffer, 0,
-        trailerBuffer.length - 1);
-    trailerBuffer[trailerBuffer.length - 1] = (byte) nextByte;
+    trailerBuffer[trailerStart] = (byte) nextByte;
+    trailerStart = (trailerStart + 1) % trailerSize;
 
     return result;
   }
@@ -119,7 +128,9 @@ class TrailerInputStream extends InputStream {
 
   /**
    * Reads up to {@code len} non-trailer bytes from the underlying stream into
-   * the array {@code b}, beginning at offset {@code off}.
+   * the array {@code b}, beginning at offset {@code off}. Bytes of {@code b}
+   * between the end of the returned data and {@code off + len} may be
+   * overwritten.
    * 
    * @param b
    *          the buffer into which the data is read.
@@ -153,46 +164,63 @@ class TrailerInputStream extends InputStream {
       fillTrailerBuffer();
     }
 
-    byte[] inputBuffer = new byte[len];
-    int numBytesRead = in.read(inputBuffer);
-
-    if (numBytesRead == EOF_VALUE) {
-      return numBytesRead;
-    }
-
     if (trailerSize == 0) {
-      System.arraycopy(inputBuffer, 0, b, off, numBytesRead);
-      return numBytesRead;
+      return in.read(b, off, len);
     }
 
-    if (numBytesRead <= trailerSize) {
-      // Need some of the trailer
-      System.arraycopy(trailerBuffer, 0, b, off, numBytesRead);
+    if (len <= trailerSize) {
+      int numBytesRead = in.read(b, off, len);
 
-      // Now need to shift rear of trailer to front
-      System.arraycopy(trailerBuffer, numBytesRead, trailerBuffer, 0,
-          trailerSize - numBytesRead);
+      if (numBytesRead == EOF_VALUE) {
+        return numBytesRead;
+      }
 
-      // Now need to fill rear of trailer
-      System.arraycopy(inputBuffer, 0, trailerBuffer, trailerSize
-          - numBytesRead, numBytesRead);
+      // Exchange the new bytes with the oldest held-back bytes
+      for (int i = 0; i < numBytesRead; i++) {
+        byte held = trailerBuffer[trailerStart];
+        trailerBuffer[trailerStart] = b[off + i];
+        b[off + i] = held;
+        trailerStart = (trailerStart + 1) % trailerSize;
+      }
+      return numBytesRead;
+    }
 
-    } else {
-      // Need all the trailer
-      System.arraycopy(trailerBuffer, 0, b, off, trailerSize);
-      off += trailerSize;
+    // Read after the space needed for the held-back bytes, which are older
+    // and so come first in the result
+    int numBytesRead = in.read(b, off + trailerSize, len - trailerSize);
 
-      // Need the remaining data, except enough to fill the buffer
-      System.arraycopy(inputBuffer, 0, b, off, numBytesRead - trailerSize);
+    if (numBytesRead == EOF_VALUE) {
+      return numBytesRead;
+    }
 
-      // Finally, fill the buffer from the remaining input
-      System.arraycopy(inputBuffer, numBytesRead - trailerSize, trailerBuffer,
-          0, trailerSize);
+    if (numBytesRead < trailerSize) {
+      // Release only the oldest held-back bytes and hold the new ones
+      for (int i = 0; i < numBytesRead; i++) {
+        b[off + i] = trailerBuffer[trailerStart];
+        trailerBuffer[trailerStart] = b[off + trailerSize + i];
+        trailerStart = (trailerStart + 1) % trailerSize;
+      }
+    } else {
+      // Release all the held-back bytes and hold the last new ones. At least
+      // trailerSize bytes were read, so the last of them start at or after
+      // off + trailerSize and the regions copied here do not overlap.
+      copyTrailer(b, off);
+      System.arraycopy(b, off + numBytesRead, trailerBuffer, 0, trailerSize);
+      trailerStart = 0;
     }
 
     return numBytesRead;
   }
 
+  /**
+   * Copies the held-back bytes, oldest first, to an array.
+   */
+  private void copyTrailer(byte[] b, int off) {
+    int firstPart = trailerSize - trailerStart;
+    System.arraycopy(trailerBuffer, trailerStart, b, off, firstPart);
+    System.arraycopy(trailerBuffer, 0, b, off + firstPart, trailerStart);
+  }
+
   @Override
   public int available() throws IOException {
     if (trailerBuffer == null) {
@@ -226,7 +254,13 @@ class TrailerInputStream extends InputStream {
    *         the {@code read} methods
    */
   public byte[] getTrailer() {
-    return trailerBuffer.clone();
+    if (trailerBuffer == null) {
+      return null;
+    }
+
+    byte[] trailer = new byte[trailerSize];
+    copyTrailer(trailer, 0);
+    return trailer;
   }
 
 }
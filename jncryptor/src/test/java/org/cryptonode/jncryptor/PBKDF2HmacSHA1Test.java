@@ -0,0 +1,135 @@
+/*    Copyright 2014 Duncan Jones
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.cryptonode.jncryptor;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link PBKDF2HmacSHA1}, used by
+ * {@link KeyDerivationEngine#PURE_JAVA}, produces the same output as the JCE
+ * {@code PBKDF2WithHmacSHA1} implementation.
+ */
+public class PBKDF2HmacSHA1Test {
+
+  private static final int KEY_LENGTH = 32;
+
+  private static final int[] ITERATIONS = { 1, 2, 10000 };
+
+  private static final String[] PASSWORDS = {
+      "password",
+      // Two-, three- and four-byte UTF-8 sequences
+      "p\u00e4ssw\u00f6rd \u2713 \u043a\u043b\u044e\u0447 \ud83d\udd11",
+      // Longer than the SHA-1 block size, so the HMAC key is hashed first
+      "a password that is considerably longer than the sixty-four bytes "
+          + "of a SHA-1 block" };
+
+  private static final byte[] SALT = { 1, 2, 3, 4, 5, 6, 7, 8 };
+
+  private static final String VECTOR_PASSWORD = "correct horse battery staple";
+
+  private static final String VECTOR_PLAINTEXT =
+      "Known plaintext for the PBKDF2 engine test.";
+
+  /**
+   * Version 3 password-based data for {@link #VECTOR_PLAINTEXT}, with 10,000
+   * iterations, encryption salt 00..07, HMAC salt 08..0f and IV 10..1f. The
+   * HMAC and plaintext were checked with an independent PBKDF2, HMAC-SHA256
+   * and AES-256-CBC implementation.
+   */
+  private static final String VECTOR_CIPHERTEXT =
+      "0301000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f"
+          + "eef9e4c5a4308e50cc38436757a3e84d45025c90311bc51bb59fe5f22201ba93"
+          + "8da12e508ae2d47589234a007df7da90da424610ab4111219592ad2517f6209f"
+          + "b32754ab205c8f5c6205437e3d808c97";
+
+  @Test
+  public void testMatchesJce() throws Exception {
+    for (String password : PASSWORDS) {
+      for (int iterations : ITERATIONS) {
+        assertArrayEquals(password + ", " + iterations + " iterations",
+            deriveWithJce(password, iterations),
+            deriveWithPureJava(password, iterations));
+      }
+    }
+  }
+
+  @Test
+  public void testCryptorKeysMatchJce() throws Exception {
+    AES256JNCryptor jce = new AES256JNCryptor(ITERATIONS[2]);
+    AES256JNCryptor pureJava = new AES256JNCryptor(ITERATIONS[2]);
+    pureJava.setKeyDerivationEngine(KeyDerivationEngine.PURE_JAVA);
+
+    for (String password : PASSWORDS) {
+      assertArrayEquals(password, jce.keyForPassword(password.toCharArray(),
+          SALT).getEncoded(), pureJava.keyForPassword(password.toCharArray(),
+          SALT).getEncoded());
+    }
+  }
+
+  @Test
+  public void testDecryptKnownVector() throws Exception {
+    AES256JNCryptor cryptor = new AES256JNCryptor();
+    cryptor.setKeyDerivationEngine(KeyDerivationEngine.PURE_JAVA);
+
+    byte[] ciphertext = fromHex(VECTOR_CIPHERTEXT);
+    byte[] plaintext = VECTOR_PLAINTEXT.getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(plaintext,
+        cryptor.decryptData(ciphertext, VECTOR_PASSWORD.toCharArray()));
+
+    assertArrayEquals(ciphertext, cryptor.encryptData(plaintext,
+        VECTOR_PASSWORD.toCharArray(), Arrays.copyOfRange(ciphertext, 2, 10),
+        Arrays.copyOfRange(ciphertext, 10, 18),
+        Arrays.copyOfRange(ciphertext, 18, 34)));
+  }
+
+  private static byte[] deriveWithJce(String password, int iterations)
+      throws Exception {
+    SecretKeyFactory factory = SecretKeyFactory
+        .getInstance("PBKDF2WithHmacSHA1");
+    return factory.generateSecret(
+        new PBEKeySpec(password.toCharArray(), SALT, iterations,
+            KEY_LENGTH * 8)).getEncoded();
+  }
+
+  private static byte[] deriveWithPureJava(String password, int iterations)
+      throws Exception {
+    PBKDF2 pbkdf2 = new PBKDF2HmacSHA1(PBKDF2.encodePassword(password
+        .toCharArray()));
+    byte[] key = new byte[KEY_LENGTH];
+    for (int block = 1; block <= PBKDF2.blockCount(KEY_LENGTH); block++) {
+      int offset = (block - 1) * PBKDF2.PRF_OUTPUT_SIZE;
+      pbkdf2.deriveBlock(SALT, iterations, block, key, offset,
+          Math.min(PBKDF2.PRF_OUTPUT_SIZE, KEY_LENGTH - offset));
+    }
+    pbkdf2.destroy();
+    return key;
+  }
+
+  private static byte[] fromHex(String hex) {
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return result;
+  }
+}